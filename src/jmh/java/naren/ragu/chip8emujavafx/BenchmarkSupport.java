@@ -0,0 +1,112 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Roms and quirk profiles shared by the benchmarks.
+ * Any rom on disk (Timendus test suite, games) can be benchmarked with -p romFile=path.
+ */
+final class BenchmarkSupport {
+
+    // Register arithmetic loop that never draws
+    static final byte[] ALU = bytes(
+            0x60, 0x01,  // 200: V0 = 1
+            0x61, 0x02,  // 202: V1 = 2
+            0x70, 0x05,  // 204: V0 += 5
+            0x80, 0x14,  // 206: V0 += V1
+            0x80, 0x15,  // 208: V0 -= V1
+            0x81, 0x06,  // 20A: V1 >>= 1
+            0x80, 0x12,  // 20C: V0 &= V1
+            0x80, 0x23,  // 20E: V0 ^= V2
+            0x8E, 0x0E,  // 210: VE <<= 1
+            0xA3, 0x00,  // 212: I = 300
+            0xF0, 0x1E,  // 214: I += V0
+            0x30, 0x00,  // 216: skip if V0 == 0
+            0x12, 0x04,  // 218: jump 204
+            0x12, 0x04   // 21A: jump 204
+    );
+
+    // Draws 15 row sprites at random positions, clearing the screen every 32 sprites
+    static final byte[] SPRITES = bytes(
+            0x00, 0xE0,  // 200: clear screen
+            0x62, 0x00,  // 202: V2 = 0
+            0xA2, 0x20,  // 204: I = 220
+            0xC0, 0x3F,  // 206: V0 = rand & 3F
+            0xC1, 0x1F,  // 208: V1 = rand & 1F
+            0xD0, 0x1F,  // 20A: draw V0, V1, 15 rows
+            0x72, 0x01,  // 20C: V2 += 1
+            0x32, 0x20,  // 20E: skip if V2 == 32
+            0x12, 0x06,  // 210: jump 206
+            0x12, 0x00,  // 212: jump 200
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // 214: padding
+            0xFF, 0x81, 0xBD, 0xA5, 0xA5, 0xBD, 0x81, 0xFF, // 220: sprite data
+            0x3C, 0x42, 0x99, 0xA5, 0x99, 0x42, 0x3C
+    );
+
+    // A little work, then polls the delay timer for the next four frames like a game pacing itself.
+    // Only frames that start inside the polling loop can have it skipped
+    static final byte[] IDLE = bytes(
+            0x60, 0x04,  // 200: V0 = 4
+            0xF0, 0x15,  // 202: delay = V0
+            0x72, 0x01,  // 204: V2 += 1
+            0x83, 0x24,  // 206: V3 += V2
+            0xF1, 0x07,  // 208: V1 = delay
+            0x31, 0x00,  // 20A: skip if V1 == 0
+            0x12, 0x08,  // 20C: jump 208
+            0x12, 0x00   // 20E: jump 200
+    );
+
+    private BenchmarkSupport(){}
+
+    static byte[] loadProgram(String program, String romFile){
+        try {
+            if(!romFile.isEmpty()){
+                return Files.readAllBytes(Paths.get(romFile));
+            }
+            switch (program) {
+                case "loadGame":
+                    try (InputStream is = Emulator.class.getResourceAsStream("loadGame.rom")) {
+                        return is.readAllBytes();
+                    }
+                case "alu":
+                    return ALU;
+                case "sprites":
+                    return SPRITES;
+                case "idle":
+                    return IDLE;
+                default:
+                    throw new IllegalArgumentException("Unknown program: " + program);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // none: every quirk disabled, chip48: shift/jump/memory increment quirks, all: every quirk enabled
+    static void applyQuirkProfile(Chip8 chip8, String profile){
+        boolean all = profile.equals("all");
+        boolean chip48 = all || profile.equals("chip48");
+        if(!all && !chip48 && !profile.equals("none")){
+            throw new IllegalArgumentException("Unknown quirk profile: " + profile);
+        }
+
+        chip8.setQuirk("shift", chip48);
+        chip8.setQuirk("memoryIncrementByX", chip48);
+        chip8.setQuirk("memoryLeaveIUnchanged", all);
+        chip8.setQuirk("jump", chip48);
+        chip8.setQuirk("wrap", all);
+        chip8.setQuirk("vfreset", all);
+    }
+
+    private static byte[] bytes(int... values){
+        byte[] result = new byte[values.length];
+        for(int i = 0; i < values.length; i++){
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+}
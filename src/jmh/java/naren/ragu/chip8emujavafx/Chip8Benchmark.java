@@ -0,0 +1,61 @@
+package naren.ragu.chip8emujavafx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole interpreter throughput. Scores are instructions/second since each invocation runs CYCLES cycles.
+ * Roms that halt (like the bundled loadGame.rom) are reloaded and continue, reloading is part of the score.
+ * Idle loops are run instead of skipped and a rom waiting on FX0A is reloaded like a halted one, so every
+ * counted cycle is an executed instruction. IdleSkipBenchmark measures skipping.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Chip8Benchmark {
+
+    static final int CYCLES = 10_000;
+
+    @Param({"loadGame", "alu", "sprites"})
+    String program;
+
+    @Param({"none", "chip48", "all"})
+    String quirkProfile;
+
+    // overrides program when set
+    @Param({""})
+    String romFile;
+
+    byte[] rom;
+    Machine machine;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        rom = BenchmarkSupport.loadProgram(program, romFile);
+        machine = new Machine();
+        machine.setSkipIdleLoops(false);
+        BenchmarkSupport.applyQuirkProfile(machine.getChip8(), quirkProfile);
+        reload();
+    }
+
+    void reload(){
+        machine.reset();
+        machine.getChip8().loadGame(rom);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public Chip8 emulateCycle(){
+        for(int i = 0; i < CYCLES; i++){
+            if(machine.isHalted() || machine.getChip8().isWaitingForKey()){
+                reload();
+            }
+            machine.step();
+        }
+        return machine.getChip8();
+    }
+}
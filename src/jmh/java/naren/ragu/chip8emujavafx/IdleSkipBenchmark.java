@@ -0,0 +1,62 @@
+package naren.ragu.chip8emujavafx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emulated frames of a rom that spends most of its time in an idle loop, with idle loops skipped and run.
+ * Scores are frames/second, multiply by instructionsPerFrame for emulated cycles/second.
+ * Skipping only pays off at speeds above the default.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdleSkipBenchmark {
+
+    static final int FRAMES = 60;
+
+    @Param({"idle"})
+    String program;
+
+    @Param({"true", "false"})
+    boolean skipIdleLoops;
+
+    @Param({"8", "1000"})
+    int instructionsPerFrame;
+
+    // overrides program when set
+    @Param({""})
+    String romFile;
+
+    byte[] rom;
+    Machine machine;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        rom = BenchmarkSupport.loadProgram(program, romFile);
+        machine = new Machine(new Chip8(), instructionsPerFrame);
+        machine.setSkipIdleLoops(skipIdleLoops);
+        reload();
+    }
+
+    void reload(){
+        machine.reset();
+        machine.getChip8().loadGame(rom);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public Chip8 runFrames(){
+        for(int i = 0; i < FRAMES; i++){
+            if(machine.isHalted()){
+                reload();
+            }
+            machine.runFrames(1);
+        }
+        return machine.getChip8();
+    }
+}
@@ -0,0 +1,74 @@
+package naren.ragu.chip8emujavafx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame of machines copies of a program, on LockstepMachines and on as many separate interpreted
+ * Machines. Scores are frames/second, multiply by machines * INSTRUCTIONS_PER_FRAME for machine-steps.
+ * With seeds=same every copy runs the same instructions, with seeds=different random numbers make them
+ * diverge. Forked with the Vector API module added, run with -jvmArgsAppend -Dchip8.lockstep.scalar=true
+ * to compare against the scalar lanes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class LockstepBenchmark {
+
+    static final int INSTRUCTIONS_PER_FRAME = 100;
+
+    @Param({"alu", "sprites"})
+    String program;
+
+    @Param({"1024"})
+    int machines;
+
+    @Param({"same", "different"})
+    String seeds;
+
+    byte[] rom;
+    Machine[] separate;
+    LockstepMachines lockstep;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        rom = BenchmarkSupport.loadProgram(program, "");
+        separate = new Machine[machines];
+        for(int m = 0; m < machines; m++){
+            separate[m] = new Machine(new Chip8(), INSTRUCTIONS_PER_FRAME);
+        }
+        lockstep = new LockstepMachines(machines, QuirkProfile.NONE, INSTRUCTIONS_PER_FRAME);
+        reload();
+    }
+
+    void reload(){
+        for(int m = 0; m < machines; m++){
+            Machine machine = separate[m];
+            machine.reset();
+            machine.getChip8().seedRandom(seeds.equals("same") ? 0 : m);
+            machine.getChip8().loadGame(rom);
+            lockstep.copyFrom(m, machine.getChip8());
+        }
+    }
+
+    @Benchmark
+    public LockstepMachines lockstep(){
+        if(lockstep.getActive() < machines){
+            reload();
+        }
+        lockstep.runFrames(1);
+        return lockstep;
+    }
+
+    @Benchmark
+    public Machine[] separate(){
+        for(Machine machine : separate){
+            machine.runFrames(1);
+        }
+        return separate;
+    }
+}
@@ -0,0 +1,94 @@
+package naren.ragu.chip8emujavafx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single instruction costs. Each benchmark places one opcode at 0x200 and executes it once,
+ * resetting pc (and I where the instruction moves it) beforehand. The opcode is written like a rom would,
+ * invalidating its predecoded entry, and checked after every execution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpcodeBenchmark {
+
+    @Param({"none", "all"})
+    String quirkProfile;
+
+    // sprite x coordinate, 60 makes the sprite clip (or wrap) at the right edge
+    @Param({"8", "60"})
+    int spriteX;
+
+    Chip8 chip8;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        chip8 = new Chip8();
+        BenchmarkSupport.applyQuirkProfile(chip8, quirkProfile);
+        chip8.initialize();
+        chip8.loadGame(BenchmarkSupport.SPRITES);
+        chip8.V[0] = (char) spriteX;
+        chip8.V[1] = 10;
+        chip8.V[0xF] = 0xA5;
+    }
+
+    private void execute(int opcode){
+        char high = (char) (opcode >>> 8);
+        char low = (char) (opcode & 0xFF);
+        if(chip8.memory[0x200] != high || chip8.memory[0x201] != low){
+            chip8.memory[0x200] = high;
+            chip8.memory[0x201] = low;
+            chip8.memoryWritten(0x200, 2); // otherwise the opcode loadGame predecoded there runs
+        }
+        chip8.pc = 0x200;
+        chip8.emulateCycle();
+        if(chip8.opcode != opcode){
+            throw new IllegalStateException(String.format("Executed %04X instead of %04X", (int) chip8.opcode, opcode));
+        }
+    }
+
+    @Benchmark
+    public long[] drawSprite(){
+        chip8.I = 0x220;
+        execute(0xD01F);
+        return chip8.getDisplay();
+    }
+
+    @Benchmark
+    public long[] clearScreen(){
+        execute(0x00E0);
+        return chip8.getDisplay();
+    }
+
+    @Benchmark
+    public char[] storeBcd(){
+        chip8.I = 0x300;
+        execute(0xFF33);
+        return chip8.memory;
+    }
+
+    @Benchmark
+    public char[] storeRegisters(){
+        chip8.I = 0x300;
+        execute(0xFF55);
+        return chip8.memory;
+    }
+
+    @Benchmark
+    public char[] loadRegisters(){
+        chip8.I = 0x300;
+        execute(0xFF65);
+        return chip8.V;
+    }
+
+    @Benchmark
+    public Chip8 initialize(){
+        chip8.initialize();
+        return chip8;
+    }
+}
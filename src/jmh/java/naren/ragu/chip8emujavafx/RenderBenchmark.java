@@ -0,0 +1,44 @@
+package naren.ragu.chip8emujavafx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Emulator.drawGraphics() for a frame with dirtyRowCount changed rows. The JavaFX toolkit
+ * is not started, so no PixelBuffer exists and only the conversion into the native resolution
+ * ARGB frame is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"32", "4"})
+    int dirtyRowCount;
+
+    Emulator emulator;
+    long[] display;
+    int dirtyRows;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        emulator = new Emulator();
+
+        // checkerboard so both colors are written
+        display = new long[32];
+        for(int y = 0; y < display.length; y++){
+            display[y] = (y & 1) == 0 ? 0x5555555555555555L : 0xAAAAAAAAAAAAAAAAL;
+        }
+        dirtyRows = (int) ((1L << dirtyRowCount) - 1);
+    }
+
+    @Benchmark
+    public int[] drawGraphics(){
+        emulator.drawGraphics(display, dirtyRows);
+        return emulator.framePixels;
+    }
+}
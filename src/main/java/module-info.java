@@ -4,6 +4,9 @@ module naren.ragu.chip8emujavafx {
     requires java.sql;
     requires java.desktop;
     requires java.prefs;
+    requires java.management;
+    requires org.objectweb.asm;
+    requires static jdk.incubator.vector;
 
 
     opens naren.ragu.chip8emujavafx to javafx.fxml;
@@ -0,0 +1,27 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * XO-CHIP sound: 128 one bit samples loaded by F002, played in a loop at the FX3A pitch while the
+ * sound timer runs. Immutable, so the emulation thread can hand it to the audio thread as it is.
+ *
+ * @param high  samples 0-63, sample 0 in bit 63
+ * @param low   samples 64-127
+ * @param pitch 64 plays 4000 samples a second, every 48 up or down doubles or halves that
+ */
+public record AudioPattern(long high, long low, int pitch){
+
+    public static final int SAMPLES = 128;
+    public static final int DEFAULT_PITCH = 64;
+
+    public double samplesPerSecond(){
+        return 4000 * Math.pow(2, (pitch - 64) / 48.0);
+    }
+
+    public boolean sample(int index){
+        return (index < 64 ? high << index : low << (index - 64)) < 0;
+    }
+
+    public AudioPattern withPitch(int pitch){
+        return new AudioPattern(high, low, pitch);
+    }
+}
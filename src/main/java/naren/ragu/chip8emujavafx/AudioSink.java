@@ -0,0 +1,32 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * Where the {@link Beeper} sends its samples: signed 8 bit mono at {@link #getSampleRate()}.
+ * Sinks that play in real time block in {@link #write} while their buffer is full, which is what
+ * paces the audio thread. The others take samples as fast as they come.
+ */
+public interface AudioSink {
+
+    float getSampleRate();
+
+    void write(byte[] samples, int offset, int length);
+
+    void close();
+
+    // Real time sinks are started before and stopped after every beep, others get every frame including silence
+    default boolean isRealtime(){
+        return false;
+    }
+
+    // Bytes written but not played yet, only meaningful for real time sinks
+    default int getQueued(){
+        return 0;
+    }
+
+    default void start(){
+    }
+
+    // Block until everything written has played, then stop
+    default void stop(){
+    }
+}
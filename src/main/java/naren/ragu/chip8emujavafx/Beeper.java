@@ -0,0 +1,154 @@
+package naren.ragu.chip8emujavafx;
+
+import java.util.Arrays;
+
+/**
+ * Beeper tone generator, turning the beeper state of each emulated frame into one frame of samples
+ * on an {@link AudioSink}.
+ *
+ * Frames get floor(sampleRate / 60) or one more samples, so any sample rate keeps exact time with the
+ * sound timer. The oscillator phase carries over from frame to frame and beep to beep, so chunk edges
+ * never click, and the volume is applied as samples are made. XO-CHIP frames can carry an
+ * {@link AudioPattern} that is played instead of the tone, its position carries over the same way.
+ *
+ * A real time sink is started with a frame of silence ahead of the first tone and stopped after a few
+ * silent frames. While it plays, the samples it still holds give the output latency, and a sink that
+ * ran dry before the next frame arrived counts as an underrun. Other sinks get every frame.
+ */
+public class Beeper {
+
+    static final double TONE_HZ = 350;
+    static final int FRAMES_PER_SECOND = 60;
+
+    // a real time sink is stopped after this many silent frames in a row
+    static final int IDLE_FRAMES = 4;
+    // silence written ahead of a beep so emulation jitter doesn't starve the sink right away
+    static final int LEAD_IN_FRAMES = 1;
+
+    private final AudioSink sink;
+    private final double sampleRate;
+    private final double phaseStep;
+    private final byte[] chunk;
+
+    private double phase;
+    private double patternPosition; // in pattern samples
+    private long frames; // frames rendered, decides how many samples the next one gets
+    private volatile boolean active;
+    private int silentFrames;
+
+    private volatile int volume;
+    private volatile long underruns;
+    private volatile double latencyMillis;
+
+    public Beeper(AudioSink sink, int volume){
+        this.sink = sink;
+        this.volume = volume;
+        sampleRate = sink.getSampleRate();
+        phaseStep = 2 * Math.PI * TONE_HZ / sampleRate;
+        chunk = new byte[(int) Math.ceil(sampleRate / FRAMES_PER_SECOND)];
+    }
+
+    public AudioSink getSink(){
+        return sink;
+    }
+
+    public int getVolume(){
+        return volume;
+    }
+
+    // Percent, takes effect from the next frame
+    public void setVolume(int volume){
+        this.volume = volume;
+    }
+
+    public long getUnderruns(){
+        return underruns;
+    }
+
+    // Samples waiting in the sink after the last write, kept from the last beep while stopped
+    public double getLatencyMillis(){
+        return latencyMillis;
+    }
+
+    public boolean isActive(){
+        return active;
+    }
+
+    // One emulated frame
+    public void frame(boolean tone){
+        frame(tone, null);
+    }
+
+    // One emulated frame, sounding pattern rather than the tone when there is one
+    public void frame(boolean tone, AudioPattern pattern){
+        if(!sink.isRealtime()){
+            write(tone, pattern);
+            return;
+        }
+
+        if(!tone){
+            if(!active) return;
+            if(++silentFrames >= IDLE_FRAMES){
+                idle();
+                return;
+            }
+        }
+        else{
+            silentFrames = 0;
+        }
+
+        if(!active){
+            sink.start();
+            for(int i = 0; i < LEAD_IN_FRAMES; i++){
+                write(false, null);
+            }
+            active = true;
+        }
+        else if(sink.getQueued() == 0){
+            underruns++;
+        }
+        write(tone, pattern);
+        latencyMillis = sink.getQueued() * 1000.0 / sampleRate;
+    }
+
+    // No frames are coming for now, let the sink play what it has and stop it
+    public void idle(){
+        if(!active) return;
+        sink.stop();
+        active = false;
+        silentFrames = 0;
+    }
+
+    public void close(){
+        active = false;
+        sink.close();
+    }
+
+    private void write(boolean tone, AudioPattern pattern){
+        int samples = (int) (Math.floor((frames + 1) * sampleRate / FRAMES_PER_SECOND)
+                - Math.floor(frames * sampleRate / FRAMES_PER_SECOND));
+        frames++;
+
+        if(tone && pattern != null){
+            byte high = (byte) (127 * (volume / 100.0));
+            double step = pattern.samplesPerSecond() / sampleRate;
+            for(int i = 0; i < samples; i++){
+                chunk[i] = pattern.sample((int) patternPosition) ? high : (byte) -high;
+                patternPosition += step;
+                if(patternPosition >= AudioPattern.SAMPLES) patternPosition -= AudioPattern.SAMPLES;
+            }
+        }
+        else if(tone){
+            double amplitude = 127 * (volume / 100.0);
+            for(int i = 0; i < samples; i++){
+                chunk[i] = (byte) (amplitude * Math.sin(phase));
+                phase += phaseStep;
+                if(phase >= 2 * Math.PI) phase -= 2 * Math.PI;
+            }
+        }
+        else{
+            Arrays.fill(chunk, 0, samples, (byte) 0);
+        }
+        sink.write(chunk, 0, samples);
+    }
+}
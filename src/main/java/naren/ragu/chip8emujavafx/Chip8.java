@@ -2,26 +2,125 @@ package naren.ragu.chip8emujavafx;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
-public class Chip8 implements Serializable {
+public class Chip8 {
 
-    Random random;
+    // Handler ids in the predecode table
+    static final int OP_INVALID = 1;
+    static final int OP_CLEAR_SCREEN = 2;
+    static final int OP_RETURN = 3;
+    static final int OP_HALT = 4;
+    static final int OP_JUMP = 5;
+    static final int OP_CALL = 6;
+    static final int OP_SKIP_EQUAL_IMMEDIATE = 7;
+    static final int OP_SKIP_NOT_EQUAL_IMMEDIATE = 8;
+    static final int OP_SKIP_EQUAL = 9;
+    static final int OP_SET_IMMEDIATE = 10;
+    static final int OP_ADD_IMMEDIATE = 11;
+    static final int OP_SET = 12;
+    static final int OP_OR = 13;
+    static final int OP_AND = 14;
+    static final int OP_XOR = 15;
+    static final int OP_ADD = 16;
+    static final int OP_SUBTRACT = 17;
+    static final int OP_SHIFT_RIGHT = 18;
+    static final int OP_SUBTRACT_REVERSE = 19;
+    static final int OP_SHIFT_LEFT = 20;
+    static final int OP_SKIP_NOT_EQUAL = 21;
+    static final int OP_SET_INDEX = 22;
+    static final int OP_JUMP_OFFSET = 23;
+    static final int OP_RANDOM = 24;
+    static final int OP_DRAW = 25;
+    static final int OP_SKIP_KEY = 26;
+    static final int OP_SKIP_NOT_KEY = 27;
+    static final int OP_GET_DELAY = 28;
+    static final int OP_WAIT_KEY = 29;
+    static final int OP_SET_DELAY = 30;
+    static final int OP_SET_SOUND = 31;
+    static final int OP_ADD_INDEX = 32;
+    static final int OP_FONT = 33;
+    static final int OP_STORE_BCD = 34;
+    static final int OP_STORE_REGISTERS = 35;
+    static final int OP_LOAD_REGISTERS = 36;
+    // SUPER-CHIP and XO-CHIP only
+    static final int OP_SCROLL_DOWN = 37;
+    static final int OP_SCROLL_UP = 38;
+    static final int OP_SCROLL_RIGHT = 39;
+    static final int OP_SCROLL_LEFT = 40;
+    static final int OP_LORES = 41;
+    static final int OP_HIRES = 42;
+    static final int OP_CLEAR_PLANES = 43;
+    static final int OP_DRAW_PLANES = 44;
+    static final int OP_BIG_FONT = 45;
+    static final int OP_STORE_FLAGS = 46;
+    static final int OP_LOAD_FLAGS = 47;
+    static final int OP_STORE_RANGE = 48;
+    static final int OP_LOAD_RANGE = 49;
+    static final int OP_LONG_INDEX = 50;
+    static final int OP_SELECT_PLANES = 51;
+    static final int OP_LOAD_AUDIO = 52;
+    static final int OP_PITCH = 53;
+    // Quirk variants, decoded in place of the plain handler while the quirk is on
+    static final int OP_OR_RESET_VF = 54;
+    static final int OP_AND_RESET_VF = 55;
+    static final int OP_XOR_RESET_VF = 56;
+    static final int OP_SHIFT_RIGHT_VX = 57;
+    static final int OP_SHIFT_LEFT_VX = 58;
+    static final int OP_JUMP_OFFSET_VX = 59;
+    static final int OP_DRAW_WRAP = 60;
+    static final int OP_STORE_REGISTERS_BY_X = 61;
+    static final int OP_LOAD_REGISTERS_BY_X = 62;
+    static final int OP_STORE_REGISTERS_KEEP_I = 63;
+    static final int OP_LOAD_REGISTERS_KEEP_I = 64;
+
+    static final int ALL_ROWS = -1; // dirtyRows mask covering the whole display
+
+    static final int LORES_ROWS = 32;
+    static final int HIRES_ROWS = 64;
+    static final int PLANE_WORDS = 2 * HIRES_ROWS; // a SUPER-CHIP or XO-CHIP plane, room for hires
+
+    // displayFormat() bits
+    static final int FORMAT_HIRES = 1;
+    static final int FORMAT_PLANES = 2;
+
+    static final int FONT_ADDRESS = 0x50;
+    static final int BIG_FONT_ADDRESS = 0xA0;
+
+    // java.util.Random's generator kept as a plain field so save states can capture it,
+    // seedRandom(s) produces the same sequence as new Random(s).nextInt(256)
+    static final long RANDOM_MULTIPLIER = 0x5DEECE66DL;
+    static final long RANDOM_MASK = (1L << 48) - 1;
+    long randomState;
     Dictionary<String, Boolean> quirks = new Hashtable<>();
+    QuirkProfile quirkProfile = QuirkProfile.NONE;          // compiled from quirks, decides the handlers decode() picks
+    volatile QuirkProfile nextQuirkProfile = QuirkProfile.NONE; // swapped in at the next frame boundary
+    MemoryWriteListener writeListener;
     String romPath;
     boolean emulate = true;
     boolean beep = false;
 
+    long invalidOpcodes; // invalid opcodes executed since initialize()
+    final long[] opcodeCounts = new long[16]; // instructions executed by first nibble, drained by Metrics
+    boolean logInvalidOpcodes = true;
+
     boolean drawFlag;
+    // bit y is set when display row y changed since the last takeDirtyRows(), in hires rows 2y and 2y + 1
+    int dirtyRows;
+
+    Variant variant = Variant.CHIP8;
 
     char opcode;
 
     char[] memory;
 
+    // Predecoded instructions by address: handler id << 16 | opcode, 0 when not decoded yet
+    int[] decoded;
+
     char[] V; // register file
 
     char I; // index counter
@@ -31,7 +130,20 @@ public class Chip8 implements Serializable {
     // 0x050-0x0A0 - Used for the built-in 4x5 pixel font set (0-F)
     // 0x200-0xFFF - Program ROM and work RAM
 
-    byte[] gfx;
+    // One word per row, bit 63 is the leftmost pixel (x = 0). In hires two words per row, row y is
+    // display[2y] (x = 0-63) and display[2y + 1] (x = 64-127). SUPER-CHIP and XO-CHIP planes always
+    // have room for hires, lores uses the first 32 words
+    long[] display;
+    long[] display2; // XO-CHIP second plane, empty for the other variants
+    boolean hires;
+    int planes = 1; // XO-CHIP planes drawn to, bit 0 for display and bit 1 for display2
+    private byte[] gfxView; // unpacked copy handed out by getGfx()
+
+    char[] flags = new char[16]; // SUPER-CHIP FX75/FX85 flag registers, 16 on XO-CHIP
+
+    // XO-CHIP sound, null until F002 loads a pattern
+    AudioPattern audioPattern;
+    int pitch = AudioPattern.DEFAULT_PITCH;
 
     char delay_timer;
     char sound_timer;
@@ -39,10 +151,52 @@ public class Chip8 implements Serializable {
     char[] stack;
     char sp;
 
-    char[] key;
+    int keys; // keypad state, bit N is set while key N is held
+
+    // FX0A: the register waiting for a key or -1, and the key that went down while waiting or -1.
+    // Engines run nothing while waiting, the instruction completes in setKeys() once that key is released
+    int keyWaitRegister = -1;
+    int keyWaitKey = -1;
 
-    char[] fontset;
+    // Built-in 4x5 font, copied to 0x050 by initialize() and shared by every instance
+    static final char[] FONTSET = {
+        0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
+        0x20, 0x60, 0x20, 0x20, 0x70, // 1
+        0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
+        0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
+        0x90, 0x90, 0xF0, 0x10, 0x10, // 4
+        0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
+        0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
+        0xF0, 0x10, 0x20, 0x40, 0x40, // 7
+        0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
+        0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
+        0xF0, 0x90, 0xF0, 0x90, 0x90, // A
+        0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
+        0xF0, 0x80, 0x80, 0x80, 0xF0, // C
+        0xE0, 0x90, 0x90, 0x90, 0xE0, // D
+        0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
+        0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+    };
 
+    // SUPER-CHIP 8x10 font for FX30, copied to 0x0A0 for SUPER-CHIP and XO-CHIP (A-F are XO-CHIP's)
+    static final char[] BIG_FONTSET = {
+        0x3C, 0x7E, 0xE7, 0xC3, 0xC3, 0xC3, 0xC3, 0xE7, 0x7E, 0x3C, // 0
+        0x18, 0x38, 0x58, 0x18, 0x18, 0x18, 0x18, 0x18, 0x18, 0x3C, // 1
+        0x3E, 0x7F, 0xC3, 0x06, 0x0C, 0x18, 0x30, 0x60, 0xFF, 0xFF, // 2
+        0x3C, 0x7E, 0xC3, 0x03, 0x0E, 0x0E, 0x03, 0xC3, 0x7E, 0x3C, // 3
+        0x06, 0x0E, 0x1E, 0x36, 0x66, 0xC6, 0xFF, 0xFF, 0x06, 0x06, // 4
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFC, 0xFE, 0x03, 0xC3, 0x7E, 0x3C, // 5
+        0x3E, 0x7C, 0xE0, 0xC0, 0xFC, 0xFE, 0xC3, 0xC3, 0x7E, 0x3C, // 6
+        0xFF, 0xFF, 0x03, 0x06, 0x0C, 0x18, 0x30, 0x60, 0x60, 0x60, // 7
+        0x3C, 0x7E, 0xC3, 0xC3, 0x7E, 0x7E, 0xC3, 0xC3, 0x7E, 0x3C, // 8
+        0x3C, 0x7E, 0xC3, 0xC3, 0x7F, 0x3F, 0x03, 0x03, 0x3E, 0x7C, // 9
+        0x3C, 0x7E, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xC3, 0xC3, // A
+        0xFC, 0xFE, 0xC3, 0xC3, 0xFE, 0xFE, 0xC3, 0xC3, 0xFE, 0xFC, // B
+        0x3C, 0x7E, 0xC3, 0xC0, 0xC0, 0xC0, 0xC0, 0xC3, 0x7E, 0x3C, // C
+        0xFC, 0xFE, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFE, 0xFC, // D
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFC, 0xFC, 0xC0, 0xC0, 0xFF, 0xFF, // E
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFC, 0xFC, 0xC0, 0xC0, 0xC0, 0xC0  // F
+    };
 
     public Chip8(){
         // Initialize quirks dictionary
@@ -54,41 +208,41 @@ public class Chip8 implements Serializable {
         quirks.put("vfreset", false);
 
 
-        random = new Random();
-        memory = new char[4096];
+        seedRandom(ThreadLocalRandom.current().nextLong());
         V = new char[16];
-        gfx = new byte[64 * 32];
         stack = new char[16];
-        key = new char[16];
-
-        fontset = new char[]{
-          0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
-          0x20, 0x60, 0x20, 0x20, 0x70, // 1
-          0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
-          0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
-          0x90, 0x90, 0xF0, 0x10, 0x10, // 4
-          0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
-          0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
-          0xF0, 0x10, 0x20, 0x40, 0x40, // 7
-          0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
-          0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
-          0xF0, 0x90, 0xF0, 0x90, 0x90, // A
-          0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
-          0xF0, 0x80, 0x80, 0x80, 0xF0, // C
-          0xE0, 0x90, 0x90, 0x90, 0xE0, // D
-          0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
-          0xF0, 0x80, 0xF0, 0x80, 0x80  // F
-        };
+        allocate();
 
         initialize();
     }
 
-    void incPC(){
-        pc += 2;
+    // Switch to another variant, resetting the machine if it changes. Call before loading a rom
+    void setVariant(Variant variant){
+        if(this.variant == variant){
+            return;
+        }
+        this.variant = variant;
+        allocate();
+        initialize();
     }
 
-    void dontIncPC(){
-        pc -= 2;
+    public Variant getVariant(){
+        return variant;
+    }
+
+    private void allocate(){
+        memory = new char[variant.memorySize];
+        decoded = new int[memory.length];
+        display = new long[variant.displayWords];
+        display2 = new long[variant.display2Words];
+    }
+
+    void incPC(){
+        // XO-CHIP's F000 NNNN is two words long, skipping it skips both
+        if(variant == Variant.XOCHIP && memory[pc] == 0xF0 && memory[pc + 1] == 0x00){
+            pc += 2;
+        }
+        pc += 2;
     }
 
     void initialize(){
@@ -96,12 +250,16 @@ public class Chip8 implements Serializable {
 
         pc = 0x200; // PC starts at 0x200
         opcode = 0; // Reset opcode
+        invalidOpcodes = 0;
         I = 0;      // Reset index register
         sp = 0;     // Reset stack pointer
 
         // Clear display
-        //gfx = new byte[64 * 32];
-        Arrays.fill(gfx, (byte) 0);
+        Arrays.fill(display, 0L);
+        Arrays.fill(display2, 0L);
+        hires = false;
+        planes = 1;
+        dirtyRows = ALL_ROWS;
         // Clear stack
         //stack = new char[16];
         Arrays.fill(stack, (char) 0);
@@ -113,7 +271,15 @@ public class Chip8 implements Serializable {
         Arrays.fill(memory, (char) 0);
 
         // Load fontset
-        System.arraycopy(fontset, 0, memory, 80, 80);
+        System.arraycopy(FONTSET, 0, memory, FONT_ADDRESS, FONTSET.length);
+        if(variant != Variant.CHIP8){
+            System.arraycopy(BIG_FONTSET, 0, memory, BIG_FONT_ADDRESS, BIG_FONTSET.length);
+        }
+        memoryWritten(0, memory.length);
+
+        Arrays.fill(flags, (char) 0); // not kept between runs, so replays start from the same state
+        audioPattern = null;
+        pitch = AudioPattern.DEFAULT_PITCH;
 
         // Reset timers
         delay_timer = 0;
@@ -121,7 +287,26 @@ public class Chip8 implements Serializable {
 
         drawFlag = true;
         beep = false;
+        keyWaitRegister = -1;
+        keyWaitKey = -1;
         //memory[0x1FF] = 0x1;
+
+        // Compile quirks for the rom that is about to start
+        setQuirkProfile(QuirkProfile.of(quirks));
+        nextQuirkProfile = quirkProfile;
+    }
+
+    // Change a quirk, takes effect at the start of the next frame
+    void setQuirk(String name, boolean enabled){
+        if(quirks.get(name) == null){
+            throw new IllegalArgumentException("Unknown quirk: " + name);
+        }
+        quirks.put(name, enabled);
+        nextQuirkProfile = QuirkProfile.of(quirks);
+    }
+
+    boolean getQuirk(String name){
+        return quirks.get(name);
     }
 
     void emulateCycle(){
@@ -131,282 +316,773 @@ public class Chip8 implements Serializable {
             return;
         }
 
-        // Fetch Opcode
-        char hi = memory[pc++];
-        char lo = memory[pc++];
-        opcode = (char) ((hi << 8) | lo);
+        // Fetch decoded instruction
+        int entry = decoded[pc];
+        if (entry == 0) {
+            entry = decode(pc);
+        }
+        pc += 2;
+        opcode = (char) entry;
+        opcodeCounts[opcode >>> 12]++;
 
-        char x = (char) (hi & 0xF);
-        char y = (char) (lo >>> 4);
-        char n = (char) (lo & 0xF);
-        char nnn = (char) (opcode & 0xFFF);
-        // Decode Opcode
+        int x = (entry >>> 8) & 0xF;
+        int y = (entry >>> 4) & 0xF;
+        int n = entry & 0xF;
+        int nn = entry & 0xFF;
+        int nnn = entry & 0xFFF;
 
-        // Get instruction
-        switch (opcode & 0xF000) {
-            case 0x0000:
-                switch (nnn) {
-                    case 0x0E0: // 0x00E0 : Clear screen
-                        Arrays.fill(gfx, (byte) 0);
-                        drawFlag = true;
-                        break;
-                    case 0x0EE: // 0x00EE : Return from subroutine
-                        pc = stack[--sp];
-                        drawFlag = true;
-                        break;
-                    case(0x000):
-                        emulate = false;
-                        break;
-                    default:
-                        System.out.println("Invalid 0 Opcode " + Integer.toHexString(opcode & 0xFFFF));
-                        break;
-                }
+        // Execute
+        switch (entry >>> 16) {
+            case OP_CLEAR_SCREEN: // 0x00E0 : Clear screen
+                clearScreen();
+                break;
+            case OP_RETURN: // 0x00EE : Return from subroutine
+                returnFromSubroutine();
+                break;
+            case OP_HALT: // 0x0000
+                emulate = false;
                 break;
-            case 0x1000: // 0x1XXX : Jump to address at XXX
-                pc = nnn;
+            case OP_JUMP: // 0x1XXX : Jump to address at XXX
+                pc = (char) nnn;
                 break;
-            case 0x2000: // 0x2XXX : Call subroutine at XXX
-                stack[sp++] = pc;
-                pc = nnn;
+            case OP_CALL: // 0x2XXX : Call subroutine at XXX
+                callSubroutine(nnn);
                 break;
-            case 0x3000: // 0x3XNN : Skip next instruction if RX == NN
-                if (V[x] == lo) {
+            case OP_SKIP_EQUAL_IMMEDIATE: // 0x3XNN : Skip next instruction if RX == NN
+                if (V[x] == nn) {
                     incPC();
                 }
                 break;
-            case 0x4000: // 0x4XNN : Skip next instruction if RX != NN
-                if (V[x] != lo) {
+            case OP_SKIP_NOT_EQUAL_IMMEDIATE: // 0x4XNN : Skip next instruction if RX != NN
+                if (V[x] != nn) {
                     incPC();
                 }
                 break;
-            case 0x5000: // 0x5XY0 : Skip next instruction if RX == RY
+            case OP_SKIP_EQUAL: // 0x5XY0 : Skip next instruction if RX == RY
                 // instruction only valid when n == 0
                 if (V[x] == V[y]) {
                     incPC();
                 }
                 break;
-            case 0x6000: // 0x6XNN : Set RX to NN
-                V[x] = lo;
+            case OP_SET_IMMEDIATE: // 0x6XNN : Set RX to NN
+                V[x] = (char) nn;
                 break;
-            case 0x7000:  // 0x7XNN : Add NN to RX
-                V[x] = (char) ((V[x] + lo) & 0xFF);
+            case OP_ADD_IMMEDIATE:  // 0x7XNN : Add NN to RX
+                V[x] = (char) ((V[x] + nn) & 0xFF);
                 break;
-            case 0x8000: { // Bitwise operations
-                switch (n) {
-                    case 0x0: // 8XY0 : set RX to RY
-                        V[x] = V[y];
-                        break;
-                    case 0x1: // 8XY1 : set RX to bitwise RX or RY
-                        V[x] |= V[y];
-                        if(quirks.get("vfreset")) V[0xF] = 0;
-                        break;
-                    case 0x2: // 8XY2 : set RX to bitwise RX and RY
-                        if(quirks.get("vfreset")) V[0xF] = 0;
-                        V[x] &= V[y];
-                        break;
-                    case 0x3: // 8XY3 : set RX to bitwise RX xor RY
-                        if(quirks.get("vfreset")) V[0xF] = 0;
-                        V[x] ^= V[y];
-                        break;
-                    case 0x4: { // 8XY4 : adds RY to RX, RF is set to 1 if overflowed, 0 if not
-                        char sum = (char) (V[x] + V[y]);
-                        V[x] = (char) (sum & 0xFF);
-                        V[0xF] = (char) (sum >>> 8);
-                        break;
-                    }
-                    case 0x5: { // 8XY5 : sets RX to RX - RY, RF is 0 when underflow, 1 if not (when RX >= RY)
-                        char noBorrow = (char) (V[x] >= V[y] ? 1 : 0);
-                        V[x] = (char) ((V[x] - V[y]) & 0xFF);
-                        V[0xF] = noBorrow;
-                        break;
-                    }
-                    case 0x6: { // 8XY6 : store least significant bit of RY in RF, set RX to RY shifted right by 1
-                        Boolean shift = quirks.get("shift");
-                        if (shift == false) {
-                            char lsb = (char) (V[y] & 0x1);
-                            V[x] = (char) (V[y] >>> 1);
-                            V[0xF] = lsb;
-                        }
-                        else {
-                            char lsb = (char) (V[x] & 0x1);
-                            V[x] = (char) (V[x] >>> 1);
-                            V[0xF] = lsb;
-                        }
-                        break;
-                    }
-                    case 0x7: { // 8XY7 : sets RX to RY - RX, RF is 0 when underflow, 1 if not (when RY >= RX)
-                        char noBorrow = (char) (V[y] >= V[x] ? 1 : 0);
-                        V[x]   = (char) ((V[y] - V[x]) & 0xFF);
-                        V[0xF] = noBorrow;
-                        break;
-                    }
-                    case 0xE: { // 8XYE : store most significant bit of RY in RF, shift RX to RY shifted left by 1
-                        Boolean shift = quirks.get("shift");
-                        if (shift == false) {
-                            char msb = (char) (V[y] >>> 7);
-                            V[x] = (char) ((V[y] << 1) & 0xFF);
-                            V[0xF] = msb;
-                        }
-                        else{
-                            char msb = (char) (V[x] >>> 7);
-                            V[x] = (char) ((V[x] << 1) & 0xFF);
-                            V[0xF] = msb;
-                        }
-                        break;
-                    }
-                    default:
-                        System.out.println("Invalid 8 Opcode " + Integer.toHexString(opcode));
-                        break;
-                }
+            case OP_SET: // 8XY0 : set RX to RY
+                V[x] = V[y];
                 break;
-            }
-            case 0x9000: // 0x9XY0 : Skip next instruction if RX != RY
+            case OP_OR: // 8XY1
+                or(x, y);
+                break;
+            case OP_OR_RESET_VF:
+                orResetVf(x, y);
+                break;
+            case OP_AND: // 8XY2
+                and(x, y);
+                break;
+            case OP_AND_RESET_VF:
+                andResetVf(x, y);
+                break;
+            case OP_XOR: // 8XY3
+                xor(x, y);
+                break;
+            case OP_XOR_RESET_VF:
+                xorResetVf(x, y);
+                break;
+            case OP_ADD: // 8XY4
+                add(x, y);
+                break;
+            case OP_SUBTRACT: // 8XY5
+                subtract(x, y);
+                break;
+            case OP_SHIFT_RIGHT: // 8XY6
+                shiftRight(x, y);
+                break;
+            case OP_SHIFT_RIGHT_VX: // 8XY6 with the shift quirk : RX shifted in place
+                shiftRight(x, x);
+                break;
+            case OP_SUBTRACT_REVERSE: // 8XY7
+                subtractReverse(x, y);
+                break;
+            case OP_SHIFT_LEFT: // 8XYE
+                shiftLeft(x, y);
+                break;
+            case OP_SHIFT_LEFT_VX: // 8XYE with the shift quirk
+                shiftLeft(x, x);
+                break;
+            case OP_SKIP_NOT_EQUAL: // 0x9XY0 : Skip next instruction if RX != RY
                 // instruction only valid when n == 0
                 if (V[x] != V[y]) {
                     incPC();
                 }
                 break;
-            case 0xA000: // ANNN : set I to address NNN
-                I = nnn;
+            case OP_SET_INDEX: // ANNN : set I to address NNN
+                I = (char) nnn;
+                break;
+            case OP_JUMP_OFFSET: // BNNN : jump to address NNN + R0
+                jumpWithOffset(0, nnn);
+                break;
+            case OP_JUMP_OFFSET_VX: // BXNN with the jump quirk : jump to address XNN + RX
+                jumpWithOffset(x, nnn);
+                break;
+            case OP_RANDOM: // CXNN : Set RX to result of bitwise NN and rand(0 to 255)
+                V[x] = (char) (nextRandomByte() & nn);
+                break;
+            case OP_DRAW: // DXYN : draw sprite at coordinate XY with width 8 and height N
+                drawSprite(x, y, n);
+                break;
+            case OP_DRAW_WRAP: // DXYN with the wrap quirk
+                drawSpriteWrap(x, y, n);
+                break;
+            case OP_SKIP_KEY: // EX9E : Skip next instruction if key == RX
+                if((keys >> (V[x] & 0xF) & 1) != 0) {
+                    incPC();
+                }
+                break;
+            case OP_SKIP_NOT_KEY: // EXA1 : Skip next instruction if key != RX
+                if((keys >> (V[x] & 0xF) & 1) == 0) {
+                    incPC();
+                }
+                break;
+            case OP_GET_DELAY: // FX07 : Store delay timer in RX
+                V[x] = delay_timer;
+                break;
+            case OP_WAIT_KEY: // FX0A : A key press and its release are awaited, and then the key is stored in RX
+                keyWaitRegister = x;
+                keyWaitKey = -1;
+                break;
+            case OP_SET_DELAY: // FX15 : Set delay timer to RX
+                delay_timer = V[x];
+                //System.out.println("Set delay timer to " + (int)delay_timer);
+                break;
+            case OP_SET_SOUND: // FX18 : Set sound timer to RX
+
+                // it shouldn't by multiplied by 2 but this is the only way that sound works properly until i fix this
+                // TODO : FIX THIS
+                sound_timer = (char)(V[x]);
+                break;
+            case OP_ADD_INDEX: // FX1E : Adds RX to I (RX flag is not changed)
+                I += V[x];
+                break;
+            case OP_FONT: // FX29 : Sets I to the location of the sprite for the character in RX
+                I = (char) (5 * (V[x] & 0xF) + 0x50);
+                break;
+            case OP_STORE_BCD: // FX33 : Stores binary coded decimal representation of RX at I, I+1, and I+2
+                storeBcd(x);
+                break;
+            case OP_STORE_REGISTERS: // FX55 : Stores from R0 - RX in memory, starting at address I, and moves I past them
+                storeRegisters(x, x + 1);
+                break;
+            case OP_STORE_REGISTERS_BY_X: // FX55 with the memoryIncrementByX quirk
+                storeRegisters(x, x);
+                break;
+            case OP_STORE_REGISTERS_KEEP_I: // FX55 with the memoryLeaveIUnchanged quirk
+                storeRegisters(x, 0);
+                break;
+            case OP_LOAD_REGISTERS: // FX65 : Loads into R0 - RX from memory, starting at address I, and moves I past them
+                loadRegisters(x, x + 1);
+                break;
+            case OP_LOAD_REGISTERS_BY_X: // FX65 with the memoryIncrementByX quirk
+                loadRegisters(x, x);
+                break;
+            case OP_LOAD_REGISTERS_KEEP_I: // FX65 with the memoryLeaveIUnchanged quirk
+                loadRegisters(x, 0);
+                break;
+            case OP_SCROLL_DOWN: // 00CN : Scroll the display down N rows
+                scrollDown(n);
+                break;
+            case OP_SCROLL_UP: // 00DN : Scroll the display up N rows
+                scrollUp(n);
+                break;
+            case OP_SCROLL_RIGHT: // 00FB : Scroll the display right 4 pixels
+                scrollRight();
+                break;
+            case OP_SCROLL_LEFT: // 00FC : Scroll the display left 4 pixels
+                scrollLeft();
+                break;
+            case OP_LORES: // 00FE : 64x32
+                setHires(false);
+                break;
+            case OP_HIRES: // 00FF : 128x64
+                setHires(true);
+                break;
+            case OP_CLEAR_PLANES: // 00E0 on SUPER-CHIP and XO-CHIP : Clear the selected planes
+                clearPlanes();
+                break;
+            case OP_DRAW_PLANES: // DXYN on SUPER-CHIP and XO-CHIP : N = 0 draws a 16x16 sprite
+                drawSpritePlanes(x, y, n);
+                break;
+            case OP_BIG_FONT: // FX30 : Sets I to the location of the 8x10 sprite for the character in RX
+                I = (char) (10 * (V[x] & 0xF) + BIG_FONT_ADDRESS);
+                break;
+            case OP_STORE_FLAGS: // FX75 : Stores R0 - RX in the flag registers
+                System.arraycopy(V, 0, flags, 0, x + 1);
+                break;
+            case OP_LOAD_FLAGS: // FX85 : Loads R0 - RX from the flag registers
+                System.arraycopy(flags, 0, V, 0, x + 1);
+                break;
+            case OP_STORE_RANGE: // 5XY2 : Stores RX - RY in memory starting at I, I doesn't change
+                storeRange(x, y);
+                break;
+            case OP_LOAD_RANGE: // 5XY3 : Loads RX - RY from memory starting at I, I doesn't change
+                loadRange(x, y);
+                break;
+            case OP_LONG_INDEX: // F000 NNNN : Set I to the 16 bit address in the next word
+                I = (char) (memory[pc] << 8 | memory[pc + 1]);
+                pc += 2;
+                break;
+            case OP_SELECT_PLANES: // FN01 : Draw, clear and scroll on the planes in bits 0 and 1 of N
+                planes = x & 3;
+                break;
+            case OP_LOAD_AUDIO: // F002 : Load the 16 byte audio pattern at I
+                loadAudioPattern();
+                break;
+            case OP_PITCH: // FX3A : Set the audio pattern playback rate from RX
+                pitch = V[x];
+                if(audioPattern != null){
+                    audioPattern = audioPattern.withPitch(pitch);
+                }
+                break;
+            default:
+                invalidOpcodes++;
+                if(logInvalidOpcodes){
+                    System.out.println("Invalid " + Integer.toHexString(opcode >>> 12).toUpperCase() + " Opcode " + Integer.toHexString(opcode));
+                }
+                break;
+        }
+    }
+
+    // Decode the instruction at address into the predecode table, returns the table entry
+    int decode(int address){
+        int instruction = (memory[address] << 8) | memory[address + 1];
+        int nn = instruction & 0xFF;
+        int handler;
+
+        switch (instruction & 0xF000) {
+            case 0x0000:
+                switch (instruction) {
+                    case 0x00E0: handler = OP_CLEAR_SCREEN; break;
+                    case 0x00EE: handler = OP_RETURN; break;
+                    case 0x0000: handler = OP_HALT; break;
+                    default: handler = OP_INVALID; break;
+                }
+                if(variant != Variant.CHIP8){
+                    handler = decodeSuperSystem(instruction, handler);
+                }
+                break;
+            case 0x1000: handler = OP_JUMP; break;
+            case 0x2000: handler = OP_CALL; break;
+            case 0x3000: handler = OP_SKIP_EQUAL_IMMEDIATE; break;
+            case 0x4000: handler = OP_SKIP_NOT_EQUAL_IMMEDIATE; break;
+            case 0x5000:
+                if(variant == Variant.XOCHIP && (instruction & 0xF) == 0x2) handler = OP_STORE_RANGE;
+                else if(variant == Variant.XOCHIP && (instruction & 0xF) == 0x3) handler = OP_LOAD_RANGE;
+                else handler = OP_SKIP_EQUAL;
                 break;
-            case 0xB000: // BNNN : jump to address NNN + R0
-                Boolean jumpQuirk = quirks.get("jump");
-                if(jumpQuirk){
-                    pc = (char) (V[x] + nnn);
+            case 0x6000: handler = OP_SET_IMMEDIATE; break;
+            case 0x7000: handler = OP_ADD_IMMEDIATE; break;
+            case 0x8000:
+                switch (instruction & 0xF) {
+                    case 0x0: handler = OP_SET; break;
+                    case 0x1: handler = quirkProfile.vfreset ? OP_OR_RESET_VF : OP_OR; break;
+                    case 0x2: handler = quirkProfile.vfreset ? OP_AND_RESET_VF : OP_AND; break;
+                    case 0x3: handler = quirkProfile.vfreset ? OP_XOR_RESET_VF : OP_XOR; break;
+                    case 0x4: handler = OP_ADD; break;
+                    case 0x5: handler = OP_SUBTRACT; break;
+                    case 0x6: handler = quirkProfile.shift ? OP_SHIFT_RIGHT_VX : OP_SHIFT_RIGHT; break;
+                    case 0x7: handler = OP_SUBTRACT_REVERSE; break;
+                    case 0xE: handler = quirkProfile.shift ? OP_SHIFT_LEFT_VX : OP_SHIFT_LEFT; break;
+                    default: handler = OP_INVALID; break;
                 }
-                else{
-                    pc = (char) (V[0] + nnn);
+                break;
+            case 0x9000: handler = OP_SKIP_NOT_EQUAL; break;
+            case 0xA000: handler = OP_SET_INDEX; break;
+            case 0xB000: handler = quirkProfile.jump ? OP_JUMP_OFFSET_VX : OP_JUMP_OFFSET; break;
+            case 0xC000: handler = OP_RANDOM; break;
+            case 0xD000:
+                if(variant != Variant.CHIP8) handler = OP_DRAW_PLANES;
+                else handler = quirkProfile.wrap ? OP_DRAW_WRAP : OP_DRAW;
+                break;
+            case 0xE000:
+                switch (nn) {
+                    case 0x9E: handler = OP_SKIP_KEY; break;
+                    case 0xA1: handler = OP_SKIP_NOT_KEY; break;
+                    default: handler = OP_INVALID; break;
                 }
                 break;
-            case 0xC000: // CXNN : Set RX to result of bitwise NN and rand(0 to 255)
-                V[x] = (char) (random.nextInt(256) & lo);
+            default: // 0xF000
+                switch (nn) {
+                    case 0x07: handler = OP_GET_DELAY; break;
+                    case 0x0A: handler = OP_WAIT_KEY; break;
+                    case 0x15: handler = OP_SET_DELAY; break;
+                    case 0x18: handler = OP_SET_SOUND; break;
+                    case 0x1E: handler = OP_ADD_INDEX; break;
+                    case 0x29: handler = OP_FONT; break;
+                    case 0x33: handler = OP_STORE_BCD; break;
+                    case 0x55:
+                        if(quirkProfile.memoryLeaveIUnchanged) handler = OP_STORE_REGISTERS_KEEP_I;
+                        else handler = quirkProfile.memoryIncrementByX ? OP_STORE_REGISTERS_BY_X : OP_STORE_REGISTERS;
+                        break;
+                    case 0x65:
+                        if(quirkProfile.memoryLeaveIUnchanged) handler = OP_LOAD_REGISTERS_KEEP_I;
+                        else handler = quirkProfile.memoryIncrementByX ? OP_LOAD_REGISTERS_BY_X : OP_LOAD_REGISTERS;
+                        break;
+                    default: handler = OP_INVALID; break;
+                }
+                if(variant != Variant.CHIP8){
+                    handler = decodeSuperMisc(instruction, handler);
+                }
                 break;
-            case 0xD000: { // DXYN : draw sprite at coordinate XY with width 8 and height N
-                char _x = V[x];
-                char _y = V[y];
-                char pixel;
+        }
 
-                V[0xF]   = 0;
-                drawFlag = true;
+        int entry = (handler << 16) | instruction;
+        decoded[address] = entry;
+        return entry;
+    }
 
-                for (int row = 0; row < n; ++row) {
-                    char ny = (char) (_y + row);
-                    if (ny >= 32 && !quirks.get("wrap")) break;
-                    ny = (char) (ny % 32);
+    // 00NN instructions SUPER-CHIP and XO-CHIP add, handler is what CHIP-8 decoded
+    private int decodeSuperSystem(int instruction, int handler){
+        switch (instruction & 0xFFF0) {
+            case 0x00C0: return OP_SCROLL_DOWN;
+            case 0x00D0: return variant == Variant.XOCHIP ? OP_SCROLL_UP : handler;
+        }
+        switch (instruction) {
+            case 0x00E0: return OP_CLEAR_PLANES;
+            case 0x00FB: return OP_SCROLL_RIGHT;
+            case 0x00FC: return OP_SCROLL_LEFT;
+            case 0x00FD: return OP_HALT;
+            case 0x00FE: return OP_LORES;
+            case 0x00FF: return OP_HIRES;
+            default: return handler;
+        }
+    }
 
-                    pixel = memory[I + row];
+    // FXNN instructions SUPER-CHIP and XO-CHIP add, handler is what CHIP-8 decoded
+    private int decodeSuperMisc(int instruction, int handler){
+        switch (instruction & 0xFF) {
+            case 0x30: return OP_BIG_FONT;
+            case 0x75: return OP_STORE_FLAGS;
+            case 0x85: return OP_LOAD_FLAGS;
+        }
+        if(variant != Variant.XOCHIP){
+            return handler;
+        }
+        switch (instruction & 0xFF) {
+            case 0x00: return instruction == 0xF000 ? OP_LONG_INDEX : handler;
+            case 0x01: return OP_SELECT_PLANES;
+            case 0x02: return instruction == 0xF002 ? OP_LOAD_AUDIO : handler;
+            case 0x3A: return OP_PITCH;
+            default: return handler;
+        }
+    }
 
-                    for (int col = 0; col < 8; col++) {
-                        char nx = (char) (_x + col);
-                        if (nx >= 64 && !quirks.get("wrap")) break;
-                        nx = (char) (nx % 64);
+    // Instruction bodies shared by the interpreter and compiled blocks (see Recompiler)
 
-                        if ((pixel & (0x80 >> col)) != 0) {
-                            char pos = (char) (ny * 64 + nx);
+    // 00E0
+    void clearScreen(){
+        int dirty = 0;
+        for (int row = 0; row < display.length; row++) {
+            if (display[row] != 0) {
+                dirty |= 1 << row;
+                display[row] = 0;
+            }
+        }
+        dirtyRows |= dirty;
+        drawFlag = true;
+    }
 
-                            if (gfx[pos] == 1) V[0xF] = 1;
+    // 00EE
+    void returnFromSubroutine(){
+        pc = stack[--sp];
+    }
 
-                            gfx[pos] ^= 1;
-                        }
-                    }
+    // 2NNN, pc must already point at the next instruction
+    void callSubroutine(int nnn){
+        stack[sp++] = pc;
+        pc = (char) nnn;
+    }
+
+    // 8XY1 : set RX to bitwise RX or RY
+    void or(int x, int y){
+        V[x] |= V[y];
+    }
+
+    // 8XY1 with the vfreset quirk, RF is cleared afterwards
+    void orResetVf(int x, int y){
+        V[x] |= V[y];
+        V[0xF] = 0;
+    }
+
+    // 8XY2 : set RX to bitwise RX and RY
+    void and(int x, int y){
+        V[x] &= V[y];
+    }
+
+    // 8XY2 with the vfreset quirk, RF is cleared first
+    void andResetVf(int x, int y){
+        V[0xF] = 0;
+        V[x] &= V[y];
+    }
+
+    // 8XY3 : set RX to bitwise RX xor RY
+    void xor(int x, int y){
+        V[x] ^= V[y];
+    }
+
+    // 8XY3 with the vfreset quirk, RF is cleared first
+    void xorResetVf(int x, int y){
+        V[0xF] = 0;
+        V[x] ^= V[y];
+    }
+
+    // 8XY4 : adds RY to RX, RF is set to 1 if overflowed, 0 if not
+    void add(int x, int y){
+        char sum = (char) (V[x] + V[y]);
+        V[x] = (char) (sum & 0xFF);
+        V[0xF] = (char) (sum >>> 8);
+    }
+
+    // 8XY5 : sets RX to RX - RY, RF is 0 when underflow, 1 if not (when RX >= RY)
+    void subtract(int x, int y){
+        char noBorrow = (char) (V[x] >= V[y] ? 1 : 0);
+        V[x] = (char) ((V[x] - V[y]) & 0xFF);
+        V[0xF] = noBorrow;
+    }
+
+    // 8XY6 : store least significant bit of RY in RF, set RX to RY shifted right by 1.
+    // The shift quirk passes X as Y
+    void shiftRight(int x, int y){
+        char lsb = (char) (V[y] & 0x1);
+        V[x] = (char) (V[y] >>> 1);
+        V[0xF] = lsb;
+    }
+
+    // 8XY7 : sets RX to RY - RX, RF is 0 when underflow, 1 if not (when RY >= RX)
+    void subtractReverse(int x, int y){
+        char noBorrow = (char) (V[y] >= V[x] ? 1 : 0);
+        V[x]   = (char) ((V[y] - V[x]) & 0xFF);
+        V[0xF] = noBorrow;
+    }
+
+    // 8XYE : store most significant bit of RY in RF, shift RX to RY shifted left by 1.
+    // The shift quirk passes X as Y
+    void shiftLeft(int x, int y){
+        char msb = (char) (V[y] >>> 7);
+        V[x] = (char) ((V[y] << 1) & 0xFF);
+        V[0xF] = msb;
+    }
+
+    // BNNN : jump to NNN + R0, or with the jump quirk to XNN + RX
+    void jumpWithOffset(int register, int nnn){
+        pc = (char) (V[register] + nnn);
+    }
+
+    // DXYN, each sprite row is one byte placed at bits 63-x .. 56-x of the row word and XORed in whole.
+    // Sprites are clipped at the bottom and right edges, nothing is visible past them
+    void drawSprite(int x, int y, int n){
+        char _x = V[x];
+        char _y = V[y];
+
+        V[0xF]   = 0;
+        drawFlag = true;
+        if (_x >= 64) return;
+
+        int dirty = 0;
+        for (int row = 0; row < n; ++row) {
+            int ny = _y + row;
+            if (ny >= 32) break;
+
+            long bits = ((long) memory[I + row] << 56) >>> _x;
+
+            if ((display[ny] & bits) != 0) V[0xF] = 1;
+            display[ny] ^= bits;
+            if (bits != 0) dirty |= 1 << ny;
+        }
+        dirtyRows |= dirty;
+    }
+
+    // DXYN with the wrap quirk, rows past the bottom and columns past the right edge come back on the other side
+    void drawSpriteWrap(int x, int y, int n){
+        char _x = V[x];
+        char _y = V[y];
+
+        V[0xF]   = 0;
+        drawFlag = true;
+
+        int dirty = 0;
+        for (int row = 0; row < n; ++row) {
+            int ny = (_y + row) & 31;
+
+            // rotating wraps the columns past the right edge back to the left
+            long bits = Long.rotateRight((long) memory[I + row] << 56, _x);
+
+            if ((display[ny] & bits) != 0) V[0xF] = 1;
+            display[ny] ^= bits;
+            if (bits != 0) dirty |= 1 << ny;
+        }
+        dirtyRows |= dirty;
+    }
+
+    // SUPER-CHIP and XO-CHIP display instructions. They work on the selected planes, in rows of one word in
+    // lores and two in hires
+
+    // The plane selected as plane p (0 or 1), null when it isn't
+    private long[] selectedPlane(int p){
+        if((planes >> p & 1) == 0) return null;
+        long[] plane = p == 0 ? display : display2;
+        return plane.length > 0 ? plane : null;
+    }
+
+    private int visibleWords(){
+        return hires ? 2 * HIRES_ROWS : LORES_ROWS;
+    }
+
+    private void displayChanged(){
+        dirtyRows = ALL_ROWS;
+        drawFlag = true;
+    }
+
+    // 00FE/00FF, clears the display like XO-CHIP and later SUPER-CHIP interpreters
+    void setHires(boolean hires){
+        this.hires = hires;
+        Arrays.fill(display, 0L);
+        Arrays.fill(display2, 0L);
+        displayChanged();
+    }
+
+    // 00E0
+    void clearPlanes(){
+        for (int p = 0; p < 2; p++) {
+            long[] plane = selectedPlane(p);
+            if (plane != null) Arrays.fill(plane, 0L);
+        }
+        displayChanged();
+    }
+
+    // 00CN, by rows of the current resolution
+    void scrollDown(int n){
+        int words = visibleWords();
+        int shift = Math.min(n * (hires ? 2 : 1), words);
+        for (int p = 0; p < 2; p++) {
+            long[] plane = selectedPlane(p);
+            if (plane == null) continue;
+            System.arraycopy(plane, 0, plane, shift, words - shift);
+            Arrays.fill(plane, 0, shift, 0L);
+        }
+        displayChanged();
+    }
+
+    // 00DN
+    void scrollUp(int n){
+        int words = visibleWords();
+        int shift = Math.min(n * (hires ? 2 : 1), words);
+        for (int p = 0; p < 2; p++) {
+            long[] plane = selectedPlane(p);
+            if (plane == null) continue;
+            System.arraycopy(plane, shift, plane, 0, words - shift);
+            Arrays.fill(plane, words - shift, words, 0L);
+        }
+        displayChanged();
+    }
+
+    // 00FB
+    void scrollRight(){
+        for (int p = 0; p < 2; p++) {
+            long[] plane = selectedPlane(p);
+            if (plane == null) continue;
+            if (hires) {
+                for (int word = 0; word < 2 * HIRES_ROWS; word += 2) {
+                    plane[word + 1] = plane[word + 1] >>> 4 | plane[word] << 60;
+                    plane[word] >>>= 4;
                 }
-                break;
             }
-            case 0xE000: // key operations
-                switch (lo) {
-                    case 0x9E: // EX9E : Skip next instruction if key == RX
-                        if(key[V[x] & 0xF] != 0) {
-                            incPC();
-                        }
-                        break;
-                    case 0xA1: // EXA1 : Skip next instruction if key != RX
-                        if(key[V[x] & 0xF] == 0) {
-                            incPC();
-                        }
-                        break;
-                    default:
-                        System.out.println("Invalid E Opcode " + Integer.toHexString(opcode));
-                        break;
+            else {
+                for (int row = 0; row < LORES_ROWS; row++) {
+                    plane[row] >>>= 4;
                 }
-                break;
-            case 0xF000:
-                switch (lo) {
-                    case 0x07: // FX07 : Store delay timer in RX
-                        V[x] = delay_timer;
-                        break;
-                    case 0x0A: // FX0A : A key release is awaited, and then stored in RX
-                        for (int i = 0; i < 16; i++) {
-                            if (key[i] != 0) {
-                                V[x] = (char) i;
-                                return;
-                            }
-                        }
-                        dontIncPC();
-                        break;
-                    case 0x15: // FX15 : Set delay timer to RX
-                        delay_timer = V[x];
-                        //System.out.println("Set delay timer to " + (int)delay_timer);
-                        break;
-                    case 0x18: // FX18 : Set sound timer to RX
+            }
+        }
+        displayChanged();
+    }
 
-                        // it shouldn't by multiplied by 2 but this is the only way that sound works properly until i fix this
-                        // TODO : FIX THIS
-                        sound_timer = (char)(V[x]);
-                        break;
-                    case 0x1E: // FX1E : Adds RX to I (RX flag is not changed)
-                        I += V[x];
-                        break;
-                    case 0x29: // FX29 : Sets I to the location of the sprite for the character in RX
-                        I = (char) (5 * (V[x] & 0xF) + 0x50);
-                        drawFlag = true;
-                        break;
-                    case 0x33: // FX33 : Stores binary coded decimal representation of RX at I, I+1, and I+2
-                        memory[I] = (char) (V[x] / 100);
-                        memory[I + 1] = (char) ((V[x] % 100) / 10);
-                        memory[I + 2] = (char) ((V[x] % 100) % 10);
-                        break;
-                    case 0x55: { // FX55 : Stores from R0 - RX in memory, starting at address I. offset += 1 for each value (I itself doesn't change)
-                        System.arraycopy(V, 0, memory, I, x + 1);
-                        Boolean loadStoreQuirkX = quirks.get("memoryIncrementByX");
-                        Boolean loadStoreQuirkI = quirks.get("memoryLeaveIUnchanged");
-
-                        if(!loadStoreQuirkI){
-                            if (loadStoreQuirkX) {
-                                I += x;
-                            } else {
-                                I += (char) (x + 1);
-                            }
-                        }
+    // 00FC
+    void scrollLeft(){
+        for (int p = 0; p < 2; p++) {
+            long[] plane = selectedPlane(p);
+            if (plane == null) continue;
+            if (hires) {
+                for (int word = 0; word < 2 * HIRES_ROWS; word += 2) {
+                    plane[word] = plane[word] << 4 | plane[word + 1] >>> 60;
+                    plane[word + 1] <<= 4;
+                }
+            }
+            else {
+                for (int row = 0; row < LORES_ROWS; row++) {
+                    plane[row] <<= 4;
+                }
+            }
+        }
+        displayChanged();
+    }
 
-                        break;
+    // DXYN on SUPER-CHIP and XO-CHIP. N = 0 draws a 16x16 sprite from two bytes a row, and every selected
+    // plane takes the next sprite's worth of bytes from I on. The start position wraps around the screen,
+    // the sprite is clipped at the edges unless the wrap quirk is set. Each sprite row is XORed in as whole
+    // words, one in lores and two in hires, so hires draws cost about the same as lores ones
+    void drawSpritePlanes(int x, int y, int n){
+        int width = hires ? 128 : 64;
+        int height = hires ? HIRES_ROWS : LORES_ROWS;
+        int _x = V[x] & (width - 1);
+        int _y = V[y] & (height - 1);
+        int rows = n == 0 ? 16 : n;
+        int rowBytes = n == 0 ? 2 : 1;
+        boolean wrap = quirkProfile.wrap;
+        int mask = memory.length - 1;
+
+        V[0xF]   = 0;
+        drawFlag = true;
+        boolean collision = false;
+        int dirty = 0;
+        int address = I;
+
+        for (int p = 0; p < 2; p++) {
+            long[] plane = selectedPlane(p);
+            if (plane == null) continue;
+
+            for (int row = 0; row < rows; ++row) {
+                int ny = _y + row;
+                if (ny >= height) {
+                    if (!wrap) break;
+                    ny -= height;
+                }
+
+                int data = rowBytes == 2
+                        ? memory[(address + 2 * row) & mask] << 8 | memory[(address + 2 * row + 1) & mask]
+                        : memory[(address + row) & mask] << 8;
+                long sprite = (long) data << 48;
+
+                if (hires) {
+                    long left;
+                    long right;
+                    if (_x < 64) {
+                        left = sprite >>> _x;
+                        right = _x == 0 ? 0 : sprite << (64 - _x);
                     }
-                    case 0x65: { // FX65 : Loads into R0 - RX from memory, starting at address I. offset += 1 for each value (I itself doesn't change)
-                        System.arraycopy(memory, I, V, 0, x + 1);
-                        Boolean loadStoreQuirkX = quirks.get("memoryIncrementByX");
-                        Boolean loadStoreQuirkI = quirks.get("memoryLeaveIUnchanged");
-
-                        if(!loadStoreQuirkI){
-                            if (loadStoreQuirkX) {
-                                I += x;
-                            } else {
-                                I += (char) (x + 1);
-                            }
-                        }
-                        break;
+                    else {
+                        // past x = 112 the sprite runs off the right edge, wrapping puts those columns on the left
+                        left = wrap && _x > 112 ? sprite << (128 - _x) : 0;
+                        right = sprite >>> (_x - 64);
                     }
-                    default:
-                        System.out.println("Invalid F Opcode " + Integer.toHexString(opcode));
-                        break;
+
+                    int word = 2 * ny;
+                    if (((plane[word] & left) | (plane[word + 1] & right)) != 0) collision = true;
+                    plane[word] ^= left;
+                    plane[word + 1] ^= right;
+                    if ((left | right) != 0) dirty |= 1 << (ny >> 1);
                 }
-                break;
-            default:
-                System.out.println("Invalid Opcode " + Integer.toHexString(opcode));
-                break;
+                else {
+                    long bits = wrap ? Long.rotateRight(sprite, _x) : sprite >>> _x;
+
+                    if ((plane[ny] & bits) != 0) collision = true;
+                    plane[ny] ^= bits;
+                    if (bits != 0) dirty |= 1 << ny;
+                }
+            }
+            address += rows * rowBytes;
+        }
+
+        if (collision) V[0xF] = 1;
+        dirtyRows |= dirty;
+    }
+
+    // 5XY2, in reverse order when X is above Y
+    void storeRange(int x, int y){
+        int step = x <= y ? 1 : -1;
+        int count = Math.abs(y - x) + 1;
+        int mask = memory.length - 1;
+        for (int i = 0; i < count; i++) {
+            memory[(I + i) & mask] = V[x + i * step];
+        }
+        memoryWritten(I, count);
+    }
+
+    // 5XY3
+    void loadRange(int x, int y){
+        int step = x <= y ? 1 : -1;
+        int count = Math.abs(y - x) + 1;
+        int mask = memory.length - 1;
+        for (int i = 0; i < count; i++) {
+            V[x + i * step] = memory[(I + i) & mask];
+        }
+    }
+
+    // F002
+    void loadAudioPattern(){
+        int mask = memory.length - 1;
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = high << 8 | memory[(I + i) & mask];
+            low = low << 8 | memory[(I + 8 + i) & mask];
+        }
+        audioPattern = new AudioPattern(high, low, pitch);
+    }
+
+    // FX33
+    void storeBcd(int x){
+        memory[I] = (char) (V[x] / 100);
+        memory[I + 1] = (char) ((V[x] % 100) / 10);
+        memory[I + 2] = (char) ((V[x] % 100) % 10);
+        memoryWritten(I, 3);
+    }
+
+    // FX55, increment is what the memory quirks add to I (see QuirkProfile.loadStoreIncrement())
+    void storeRegisters(int x, int increment){
+        System.arraycopy(V, 0, memory, I, x + 1);
+        memoryWritten(I, x + 1);
+        I += (char) increment;
+    }
+
+    // FX65
+    void loadRegisters(int x, int increment){
+        System.arraycopy(memory, I, V, 0, x + 1);
+        I += (char) increment;
+    }
+
+    // Drop decoded instructions overlapping the written bytes and tell the recompiler, if attached
+    void memoryWritten(int address, int length){
+        int end = Math.min(address + length, decoded.length);
+        for (int i = Math.max(0, address - 1); i < end; i++) {
+            decoded[i] = 0;
+        }
+
+        if(writeListener != null){
+            writeListener.memoryWritten(address, length);
+        }
+    }
+
+    // Instructions are decoded, and compiled, into the handlers of one quirk profile, so changing it
+    // drops every decoded instruction and compiled block
+    void setQuirkProfile(QuirkProfile profile){
+        QuirkProfile previous = quirkProfile;
+        quirkProfile = profile;
+        if(profile.equals(previous)){
+            return;
+        }
+        Arrays.fill(decoded, 0);
+        if(writeListener != null){
+            writeListener.quirkProfileChanged();
         }
     }
 
     // Update timers
     void updateTimers(){
+        // Frame boundary, pick up quirk changes made since the last frame
+        if(nextQuirkProfile != quirkProfile){
+            setQuirkProfile(nextQuirkProfile);
+        }
 
         if (delay_timer > 0) {
             --delay_timer;
@@ -426,11 +1102,7 @@ public class Chip8 implements Serializable {
         try {
             Path path = Paths.get(name);
             romPath = name;
-            byte[] contents = Files.readAllBytes(path);
-            for (int i = 0; i < contents.length; i++){
-                char data = (char)(0xFF & contents[i]);
-                memory[i + 0x200] = data;
-            }
+            loadGame(Files.readAllBytes(path));
         } catch (IOException e) {
             System.out.println("Game File Not Found: " + name);
         }
@@ -439,22 +1111,194 @@ public class Chip8 implements Serializable {
     void loadGame(InputStream is){
         try {
             romPath = "demo";
-            byte[] contents = is.readAllBytes();
-            for (int i = 0; i < contents.length; i++){
-                char data = (char)(0xFF & contents[i]);
-                memory[i + 0x200] = data;
-            }
+            loadGame(is.readAllBytes());
         } catch (IOException e) {
             System.out.println("InputStream not found! Cannot load ROM.");
         }
     }
 
+    void loadGame(byte[] contents){
+        for (int i = 0; i < contents.length; i++){
+            char data = (char)(0xFF & contents[i]);
+            memory[i + 0x200] = data;
+        }
+        memoryWritten(0x200, contents.length);
+
+        // Predecode the rom, data bytes decode to something harmless and are never executed.
+        // The rest of the program area is decoded the first time it is executed
+        int end = Math.min(0x200 + contents.length, memory.length - 1);
+        for (int address = 0x200; address < end; address++) {
+            decode(address);
+        }
+    }
+
+    // Packed display rows, see display
+    public long[] getDisplay(){
+        return display;
+    }
+
+    // XO-CHIP's second plane, laid out like display. Empty for the other variants
+    public long[] getDisplay2(){
+        return display2;
+    }
+
+    // FORMAT_HIRES while in 128x64, FORMAT_PLANES when there is a second plane
+    public int displayFormat(){
+        return (hires ? FORMAT_HIRES : 0) | (display2.length > 0 ? FORMAT_PLANES : 0);
+    }
+
+    public int getWidth(){
+        return hires ? 128 : 64;
+    }
+
+    public int getHeight(){
+        return hires ? HIRES_ROWS : LORES_ROWS;
+    }
+
+    // Rows changed since the last call, bit y for row y
+    public int takeDirtyRows(){
+        int dirty = dirtyRows;
+        dirtyRows = 0;
+        return dirty;
+    }
+
+    // True when the pixel is set on either plane
+    public boolean getPixel(int x, int y){
+        int word = hires ? 2 * y + (x >> 6) : y;
+        long row = display2.length > 0 ? display[word] | display2[word] : display[word];
+        return (row << x) < 0; // shifts are taken mod 64
+    }
+
+    // One byte per pixel, row major, getWidth() x getHeight(). Unpacked from the display on every call
     public byte[] getGfx(){
-        return gfx;
+        int width = getWidth();
+        int height = getHeight();
+        if(gfxView == null || gfxView.length != width * height){
+            gfxView = new byte[width * height];
+        }
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                gfxView[y * width + x] = (byte) (getPixel(x, y) ? 1 : 0);
+            }
+        }
+        return gfxView;
+    }
+
+    public void seedRandom(long seed){
+        randomState = (seed ^ RANDOM_MULTIPLIER) & RANDOM_MASK;
+    }
+
+    // CXNN random source, the top 8 bits of the next 48 bit state
+    int nextRandomByte(){
+        randomState = (randomState * RANDOM_MULTIPLIER + 0xBL) & RANDOM_MASK;
+        return (int) (randomState >>> 40);
+    }
+
+    // Copy the machine state of source into this instance without allocating. The pending quirk
+    // change is kept, it comes from the settings rather than from the copied machine
+    public void copyStateFrom(Chip8 source){
+        setVariant(source.variant);
+        pc = source.pc;
+        I = source.I;
+        opcode = source.opcode;
+        sp = source.sp;
+        delay_timer = source.delay_timer;
+        sound_timer = source.sound_timer;
+        emulate = source.emulate;
+        beep = source.beep;
+        keyWaitRegister = source.keyWaitRegister;
+        keyWaitKey = source.keyWaitKey;
+        quirkProfile = source.quirkProfile;
+        randomState = source.randomState;
+
+        System.arraycopy(source.V, 0, V, 0, V.length);
+        System.arraycopy(source.stack, 0, stack, 0, stack.length);
+        System.arraycopy(source.memory, 0, memory, 0, memory.length);
+        System.arraycopy(source.display, 0, display, 0, display.length);
+        System.arraycopy(source.display2, 0, display2, 0, display2.length);
+        hires = source.hires;
+        planes = source.planes;
+        System.arraycopy(source.flags, 0, flags, 0, flags.length);
+        audioPattern = source.audioPattern;
+        pitch = source.pitch;
+
+        // decoded instructions match the copied memory, only the recompiler has to start over
+        System.arraycopy(source.decoded, 0, decoded, 0, decoded.length);
+        if(writeListener != null){
+            writeListener.memoryWritten(0, memory.length);
+        }
+
+        dirtyRows = ALL_ROWS;
+        drawFlag = true;
+    }
+
+    // Bit N of the mask is key N
+    public void setKeys(int keys){
+        int pressed = keys & ~this.keys;
+        this.keys = keys;
+        if(keyWaitRegister >= 0){
+            waitForKey(pressed);
+        }
+    }
+
+    // FX0A: the lowest key pressed while waiting is taken once it is released again
+    private void waitForKey(int pressed){
+        if(keyWaitKey < 0 && pressed != 0){
+            keyWaitKey = Integer.numberOfTrailingZeros(pressed);
+        }
+        if(keyWaitKey >= 0 && (keys >> keyWaitKey & 1) == 0){
+            V[keyWaitRegister] = (char) keyWaitKey;
+            keyWaitRegister = -1;
+            keyWaitKey = -1;
+        }
+    }
+
+    public boolean isWaitingForKey(){
+        return keyWaitRegister >= 0;
     }
 
-    public void setKeys(char[] keys){
-        this.key = keys;
+    // Length in instructions of the loop starting at address when going round it changes nothing but pc,
+    // opcode and the register it reads the delay timer into until the timers or keys change, 0 for anything
+    // else. Recognized: a jump to itself, FX07 3XNN/4XNN 1NNN polling the delay timer and EX9E/EXA1 1NNN
+    // polling a key. Timers tick and keys change only between engine runs, so such a loop keeps going round
+    int idleLoopLength(int address){
+        if(address < 0 || address > memory.length - 6){
+            return 0;
+        }
+        int first = memory[address] << 8 | memory[address + 1];
+        int second = memory[address + 2] << 8 | memory[address + 3];
+        int third = memory[address + 4] << 8 | memory[address + 5];
+        int loop = 0x1000 | address;
+        int x = (first >>> 8) & 0xF;
+
+        if(first == loop){
+            return 1;
+        }
+        if(second == loop){
+            int key = V[x] & 0xF;
+            switch (first & 0xF0FF) {
+                case 0xE09E: return (keys >> key & 1) == 0 ? 2 : 0;
+                case 0xE0A1: return (keys >> key & 1) != 0 ? 2 : 0;
+                default: return 0;
+            }
+        }
+        if(third == loop && (first & 0xF0FF) == 0xF007 && (second >>> 8 & 0xF) == x){
+            int nn = second & 0xFF;
+            switch (second >>> 12) {
+                case 0x3: return delay_timer != nn ? 3 : 0;
+                case 0x4: return delay_timer == nn ? 3 : 0;
+                default: return 0;
+            }
+        }
+        return 0;
+    }
+
+    // Leave the state exactly as going round the idle loop starting at pc one or more whole times would
+    void skipIdleLoop(int length){
+        opcode = (char) (0x1000 | pc); // the jump back is the last instruction of every iteration
+        if(length == 3){
+            V[(memory[pc] & 0xF)] = delay_timer;
+        }
     }
 
     public void printMem(){
@@ -489,12 +1333,13 @@ public class Chip8 implements Serializable {
     }
 
     public void printDisplay(){
-        for(int y = 0; y < 32; y++){
+        // lores pixels are printed two characters wide, hires ones one
+        for(int y = 0; y < getHeight(); y++){
             StringBuilder line = new StringBuilder();
-            for(int x = 0; x < 64; x++){
-                    char pixel = (char) gfx[x + (y * 64)];
-                    pixel = (short)pixel == 0 ? '░' : '█';
-                line.append(pixel).append(pixel);
+            for(int x = 0; x < getWidth(); x++){
+                    char pixel = getPixel(x, y) ? '█' : '░';
+                line.append(pixel);
+                if(!hires) line.append(pixel);
             }
             System.out.println(line);
         }
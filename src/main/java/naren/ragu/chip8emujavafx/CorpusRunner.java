@@ -0,0 +1,259 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Smoke tests a whole directory of roms, one independent machine per rom spread over a fork-join pool.
+ *
+ * Usage: CorpusRunner &lt;rom or directory&gt;... [--cycles N] [--ipf N] [--quirks shift,wrap,...]
+ *                     [--engine interpreter|recompiler] [--threads N] [--seed N] [--report out.csv]
+ *
+ * Every rom runs for the same cycle budget with the same quirks and random seed, so two builds can be
+ * compared by diffing their reports. The CSV report has one line per rom: cycles and how many of them were
+ * skipped in idle loops or FX0A waits, final display hash, halt, invalid opcode count, the exception that
+ * stopped it if any, and instructions per second counting executed instructions only.
+ * Machines share nothing, so throughput scales with the number of threads. Each rom runs on the
+ * {@link Variant} its file extension names.
+ */
+public class CorpusRunner {
+
+    static final long DEFAULT_CYCLES = 1_000_000;
+    static final long DEFAULT_SEED = 0;
+
+    static final List<String> ROM_EXTENSIONS = List.of(".ch8", ".sc8", ".xo8", ".rom");
+    static final String REPORT_HEADER = "rom,cycles,skipped_cycles,halted,invalid_opcodes,display_hash,exception,millis,"
+            + "instructions_per_second";
+
+    // Outcome of running a single rom
+    record Result(Path rom, long cycles, long skippedCycles, boolean halted, long invalidOpcodes, int displayHash,
+                  String exception, long nanos){
+
+        long executedCycles(){
+            return cycles - skippedCycles;
+        }
+
+        double instructionsPerSecond(){
+            return nanos > 0 ? executedCycles() * 1e9 / nanos : 0;
+        }
+
+        String toCsv(){
+            return String.format("%s,%d,%d,%b,%d,%08x,%s,%.3f,%.0f", csvField(rom.toString()), cycles, skippedCycles, halted,
+                    invalidOpcodes, displayHash, exception != null ? csvField(exception) : "",
+                    nanos / 1e6, instructionsPerSecond());
+        }
+    }
+
+    public static void main(String[] args) {
+        List<Path> inputs = new ArrayList<>();
+        long cycles = DEFAULT_CYCLES;
+        int instructionsPerFrame = Machine.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        String quirks = "";
+        String engine = "interpreter";
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = DEFAULT_SEED;
+        String report = null;
+
+        try {
+            for(int i = 0; i < args.length; i++){
+                switch (args[i]) {
+                    case "--cycles" -> cycles = Long.parseLong(args[++i]);
+                    case "--ipf" -> instructionsPerFrame = Integer.parseInt(args[++i]);
+                    case "--quirks" -> {
+                        quirks = args[++i];
+                        String unknown = HeadlessRunner.unknownQuirk(quirks);
+                        if(unknown != null){
+                            System.out.println("Unknown quirk: " + unknown);
+                            printUsage();
+                            System.exit(1);
+                        }
+                    }
+                    case "--engine" -> engine = args[++i];
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--seed" -> seed = Long.parseLong(args[++i]);
+                    case "--report" -> report = args[++i];
+                    default -> {
+                        if(args[i].startsWith("--")){
+                            System.out.println("Unknown option: " + args[i]);
+                            printUsage();
+                            System.exit(1);
+                        }
+                        inputs.add(Paths.get(args[i]));
+                    }
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if(inputs.isEmpty() || threads < 1){
+            printUsage();
+            System.exit(1);
+        }
+        if(!engine.equals("interpreter") && !engine.equals("recompiler")){
+            System.out.println("Unknown engine: " + engine);
+            System.exit(1);
+        }
+
+        List<Path> roms;
+        try {
+            roms = findRoms(inputs);
+        } catch (IOException e) {
+            System.out.println("IOException caught when listing roms! " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = run(roms, cycles, instructionsPerFrame, quirks, engine, seed, threads);
+        long elapsed = System.nanoTime() - start;
+
+        try (PrintWriter out = report != null ? new PrintWriter(Files.newBufferedWriter(Paths.get(report)))
+                : new PrintWriter(System.out)) {
+            out.println(REPORT_HEADER);
+            for(Result result : results){
+                out.println(result.toCsv());
+            }
+        } catch (IOException e) {
+            System.out.println("IOException caught when writing report! " + e.getMessage());
+            System.exit(1);
+        }
+
+        long executed = 0;
+        long skipped = 0;
+        int halted = 0;
+        int invalid = 0;
+        int failed = 0;
+        for(Result result : results){
+            executed += result.executedCycles();
+            skipped += result.skippedCycles();
+            if(result.halted()) halted++;
+            if(result.invalidOpcodes() > 0) invalid++;
+            if(result.exception() != null) failed++;
+        }
+        double seconds = elapsed / 1e9;
+        System.out.printf("Ran %d roms on %d threads in %.3f s: %d halted, %d with invalid opcodes, %d exceptions, "
+                        + "%.0f instructions/s overall, %d more cycles skipped idle%n",
+                results.size(), threads, seconds, halted, invalid, failed,
+                seconds > 0 ? executed / seconds : 0, skipped);
+        System.exit(failed > 0 ? 2 : 0);
+    }
+
+    // Roms given directly plus every .ch8, .sc8, .xo8 and .rom file below the given directories, in a stable order
+    static List<Path> findRoms(List<Path> inputs) throws IOException {
+        List<Path> roms = new ArrayList<>();
+        for(Path input : inputs){
+            if(Files.isDirectory(input)){
+                try (Stream<Path> files = Files.walk(input)) {
+                    files.filter(Files::isRegularFile)
+                            .filter(path -> ROM_EXTENSIONS.stream().anyMatch(path.toString()::endsWith))
+                            .sorted()
+                            .forEach(roms::add);
+                }
+            }
+            else{
+                roms.add(input);
+            }
+        }
+        return roms;
+    }
+
+    // Runs every rom on its own machine, results come back in the order of roms
+    static List<Result> run(List<Path> roms, long cycles, int instructionsPerFrame, String quirks,
+                            String engine, long seed, int threads){
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for(Path rom : roms){
+            tasks.add(() -> runRom(rom, cycles, instructionsPerFrame, quirks, HeadlessRunner.createEngine(engine), seed));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Result> results = new ArrayList<>();
+            for(Future<Result> future : pool.invokeAll(tasks)){
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running roms", e);
+        } catch (ExecutionException e) {
+            // runRom catches everything the rom can cause, anything else is a bug here
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static Result runRom(Path rom, long cycles, int instructionsPerFrame, String quirks, ExecutionEngine engine, long seed){
+        Machine machine = new Machine(new Chip8(), instructionsPerFrame);
+        machine.setEngine(engine);
+        Chip8 chip8 = machine.getChip8();
+        chip8.setVariant(Variant.forRom(rom.getFileName().toString()));
+        chip8.logInvalidOpcodes = false;
+        HeadlessRunner.applyQuirks(chip8, quirks);
+
+        String exception = null;
+        long start = System.nanoTime();
+        try {
+            machine.reset();
+            chip8.seedRandom(seed);
+            chip8.loadGame(Files.readAllBytes(rom));
+            machine.runCycles(cycles);
+        } catch (IOException | RuntimeException e) {
+            exception = describe(e);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return new Result(rom, machine.getCycles(), machine.getSkippedCycles(), machine.isHalted(), chip8.invalidOpcodes,
+                displayHash(chip8), exception, elapsed);
+    }
+
+    // CRC32 of the packed display, followed by the second plane on XO-CHIP
+    static int displayHash(Chip8 chip8){
+        ByteBuffer rows = ByteBuffer.allocate((chip8.display.length + chip8.display2.length) * Long.BYTES);
+        for(long row : chip8.display){
+            rows.putLong(row);
+        }
+        for(long row : chip8.display2){
+            rows.putLong(row);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(rows.array());
+        return (int) crc.getValue();
+    }
+
+    // Exception class and where it was thrown, stable across runs so reports can be diffed
+    static String describe(Throwable e){
+        StringBuilder where = new StringBuilder(e.getClass().getSimpleName());
+        StackTraceElement[] trace = e.getStackTrace();
+        if(trace.length > 0){
+            where.append(" at ").append(trace[0].getMethodName()).append(':').append(trace[0].getLineNumber());
+        }
+        return where.toString();
+    }
+
+    static String csvField(String value){
+        if(value.contains(",") || value.contains("\"")){
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    static void printUsage(){
+        System.out.println("Usage: CorpusRunner <rom or directory>... [--cycles N] [--ipf N] [--quirks " + String.join(",", HeadlessRunner.QUIRK_NAMES) + "]"
+                + " [--engine interpreter|recompiler] [--threads N] [--seed N] [--report out.csv]");
+    }
+}
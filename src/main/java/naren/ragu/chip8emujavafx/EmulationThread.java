@@ -0,0 +1,481 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the emulator off the JavaFX Application Thread.
+ *
+ * Frames are paced by a {@link FramePacer} and finished displays are handed to the UI through a
+ * {@link TripleBuffer}. The UI never touches the machine directly: key presses and releases are queued
+ * with the time they happened and everything else is queued with {@link #execute(Runnable)} and applied
+ * between frames on this thread.
+ *
+ * Frames run in bursts when the pacer says they are due, each standing for its share of the real time
+ * since the previous burst. A key event lands on the cycle of its frame that matches when it happened,
+ * so presses shorter than a frame and presses close together keep their order and spacing.
+ *
+ * Turbo runs faster than the speed setting, at a fixed multiple or as fast as the host allows,
+ * publishing only every Nth frame and keeping the beeper quiet.
+ *
+ * While paused or halted the thread parks until a command or a setting wakes it, and the idle listener
+ * lets the UI stop its own loop. Resuming picks up on the cycle emulation stopped at.
+ *
+ * Every emulated frame is recorded in {@link Metrics}, with its cycles, instruction counts and emulation time.
+ */
+public class EmulationThread extends Thread {
+
+    public static final int DEFAULT_TURBO_FRAME_SKIP = 4;
+
+    // unthrottled turbo runs frames for this long before looking at commands again
+    static final long TURBO_SLICE_NANOS = FramePacer.FRAME_NANOS;
+    static final long SPEED_WINDOW_NANOS = 500_000_000L;
+    // a key event that changed nothing on screen for this long is not waiting to be shown
+    static final long INPUT_LATENCY_LIMIT_NANOS = 250_000_000L;
+
+    // A keypad key going down or up at System.nanoTime() nanos
+    record KeypadEvent(long nanos, int key, boolean pressed){
+    }
+
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final Queue<KeypadEvent> input = new ConcurrentLinkedQueue<>();
+    private final TripleBuffer frames = new TripleBuffer(2 * Chip8.PLANE_WORDS);
+    private final FramePacer pacer = new FramePacer();
+    private final RewindBuffer rewind = new RewindBuffer();
+    private final QuickSaveSlots quickSaves = new QuickSaveSlots(QuickSaveSlots.DEFAULT_SLOTS);
+    private final Metrics metrics = new Metrics();
+
+    private Machine machine;
+    private volatile Sound sound;
+    private volatile Runnable idleListener;
+    private InputMovie recording;
+    private Path recordingPath;
+
+    private volatile boolean running = true;
+    private volatile boolean paused;
+    private volatile boolean rewinding;
+    private volatile boolean recordingMovie;
+    private volatile double rate = 1;
+    private volatile boolean turbo;
+    private volatile double turboRate; // 0 runs unthrottled
+    private volatile int turboFrameSkip = DEFAULT_TURBO_FRAME_SKIP;
+
+    private int framesSincePublish;
+    private int keyMask; // keys held as of the last applied event
+    private long inputWindowStart = -1; // real time the next burst of frames starts covering, -1 for now
+    private long inputSince = -1; // oldest key event applied since the last published frame
+    private long speedWindowStart = -1;
+    private long speedWindowFrames;
+    private long speedWindowCycles;
+    private boolean wasIdle;
+
+    // state published for the UI after every tick
+    private volatile boolean beeping;
+    private volatile boolean halted;
+    private volatile double speed;
+    private volatile boolean idle;
+
+    public EmulationThread(Machine machine){
+        super("Chip8 Emulation");
+        setDaemon(true);
+        this.machine = machine;
+    }
+
+    // Queue a command to run on the emulation thread before the next frame
+    public void execute(Runnable command){
+        commands.add(command);
+        LockSupport.unpark(this);
+    }
+
+    // Only valid on the emulation thread, from inside a command
+    public Machine getMachine(){
+        return machine;
+    }
+
+    // Only valid on the emulation thread, from inside a command
+    public void setMachine(Machine machine){
+        finishRecording();
+        this.machine = machine;
+        // the new machine starts with the keys that are down now
+        KeypadEvent event;
+        while((event = input.poll()) != null){
+            applyKey(event);
+        }
+        pacer.reset();
+        inputWindowStart = -1;
+        inputSince = -1;
+        rewind.clear();
+        refreshDisplay();
+    }
+
+    // Publish the whole display now, even while paused. Only valid on the emulation thread
+    public void refreshDisplay(){
+        Chip8 chip8 = machine.getChip8();
+        chip8.takeDirtyRows();
+        chip8.drawFlag = false;
+        frames.publish(chip8.getDisplay(), chip8.getDisplay2(), chip8.displayFormat(), Chip8.ALL_ROWS);
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame){
+        execute(() -> machine.setInstructionsPerFrame(instructionsPerFrame));
+    }
+
+    public double getRate(){
+        return rate;
+    }
+
+    public void setRate(double rate){
+        this.rate = rate;
+        execute(this::applyRate);
+    }
+
+    public boolean isTurbo(){
+        return turbo;
+    }
+
+    public void setTurbo(boolean turbo){
+        if(this.turbo == turbo) return;
+        this.turbo = turbo;
+        execute(() -> {
+            applyRate();
+            // show what was drawn during skipped frames and don't catch up on unthrottled time
+            publishFrame(machine.getChip8());
+            pacer.reset();
+        });
+    }
+
+    public double getTurboRate(){
+        return turboRate;
+    }
+
+    // Speed multiplier while turbo is on, 0 or less for as fast as possible
+    public void setTurboRate(double turboRate){
+        this.turboRate = Math.max(0, turboRate);
+        execute(this::applyRate);
+    }
+
+    public int getTurboFrameSkip(){
+        return turboFrameSkip;
+    }
+
+    // While turbo is on only every frameSkip-th frame is handed to the UI
+    public void setTurboFrameSkip(int frameSkip){
+        this.turboFrameSkip = Math.max(1, frameSkip);
+    }
+
+    // Emulated frames per 60 Hz frame of real time, measured over the last half second
+    public double getSpeed(){
+        return speed;
+    }
+
+    private void applyRate(){
+        double target = turbo && turboRate > 0 ? turboRate : rate;
+        pacer.setRate(target);
+        // faster rates owe more frames per tick, don't count those as a stall
+        pacer.setMaxCatchUpFrames(FramePacer.DEFAULT_MAX_CATCH_UP_FRAMES * (int) Math.max(1, Math.ceil(target)));
+    }
+
+    public boolean isPaused(){
+        return paused;
+    }
+
+    public void setPaused(boolean paused){
+        this.paused = paused;
+        LockSupport.unpark(this);
+    }
+
+    public boolean isRewinding(){
+        return rewinding;
+    }
+
+    // While set frames play backwards from the rewind buffer instead of being emulated
+    public void setRewinding(boolean rewinding){
+        this.rewinding = rewinding;
+        LockSupport.unpark(this);
+    }
+
+    // Only valid on the emulation thread, from inside a command
+    public RewindBuffer getRewind(){
+        return rewind;
+    }
+
+    // Save to a quick save slot between frames, also writing it to flushPath in the background when not null
+    public void quickSave(int slot, Path flushPath){
+        execute(() -> {
+            quickSaves.save(slot, machine.getChip8());
+            if(flushPath != null){
+                quickSaves.flush(slot, flushPath);
+            }
+        });
+    }
+
+    // Restore a quick save slot between frames, nothing happens if the slot is empty or a movie is recording
+    public void quickLoad(int slot){
+        execute(() -> {
+            if(recording == null && quickSaves.load(slot, machine.getChip8())){
+                refreshDisplay();
+            }
+        });
+    }
+
+    public boolean isRecording(){
+        return recordingMovie;
+    }
+
+    // Record input from now until stopRecording() or the next rom load, then write the movie to path.
+    // Queue it right after restarting the rom, movies always start from a reset.
+    // Rewinding and loading states are ignored while recording since they cannot be replayed
+    public void startRecording(long seed, Path path){
+        execute(() -> {
+            finishRecording();
+            recording = InputMovie.start(machine, seed);
+            recordingPath = path;
+            recordingMovie = true;
+        });
+    }
+
+    public void stopRecording(){
+        execute(this::finishRecording);
+    }
+
+    private void finishRecording(){
+        recordingMovie = false;
+        if(recording == null) return;
+        try {
+            recording.write(recordingPath);
+        } catch (IOException e) {
+            System.out.println("IOException caught when writing input movie! " + e.getMessage());
+        }
+        recording = null;
+    }
+
+    // Every emulated frame's beeper state goes to sound, except while turbo or rewinding
+    public void setSound(Sound sound){
+        this.sound = sound;
+    }
+
+    public boolean isBeeping(){
+        return beeping;
+    }
+
+    public boolean isHalted(){
+        return halted;
+    }
+
+    // Paused, or halted and not rewinding: no frames are run until something changes
+    public boolean isIdle(){
+        return idle;
+    }
+
+    // Run on the emulation thread when it stops or starts running frames, and after every command
+    // handled while stopped, which may have published a frame
+    public void setIdleListener(Runnable idleListener){
+        this.idleListener = idleListener;
+    }
+
+    public void pressKey(int key){
+        input.add(new KeypadEvent(System.nanoTime(), key, true));
+    }
+
+    public void releaseKey(int key){
+        input.add(new KeypadEvent(System.nanoTime(), key, false));
+    }
+
+    public TripleBuffer getFrames(){
+        return frames;
+    }
+
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    // Stop the loop and wait for the current frame to finish
+    public void shutdown(){
+        running = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        quickSaves.shutdown();
+    }
+
+    @Override
+    public void run(){
+        while(running){
+            runCommands();
+
+            Chip8 chip8 = machine.getChip8();
+            boolean unthrottled = turbo && turboRate <= 0 && !rewinding;
+            if(!paused && (chip8.emulate || rewinding)){
+                long now = System.nanoTime();
+                int due = unthrottled ? Integer.MAX_VALUE : pacer.framesDue(now);
+                int frameSkip = turbo ? turboFrameSkip : 1;
+                long windowStart = inputWindowStart >= 0 && !unthrottled ? inputWindowStart : now;
+                int ran = 0;
+                for(int i = 0; i < due; i++){
+                    if(rewinding && recording == null){
+                        // a halted rom can be rewound back to before the halt
+                        if(!rewind.rewind(chip8)) break;
+                    }
+                    else{
+                        if(!chip8.emulate) break;
+                        // frame i of the burst covers its share of the time since the last burst
+                        long frameStart = windowStart + (now - windowStart) * i / due;
+                        long frameEnd = windowStart + (now - windowStart) * (i + 1) / due;
+                        runFrame(chip8, frameStart, unthrottled ? now : frameEnd);
+                        rewind.capture(chip8);
+                        Sound sound = this.sound;
+                        if(sound != null && !turbo){
+                            sound.queueFrame(chip8.beep, chip8.audioPattern);
+                        }
+                        if(recording != null){
+                            recording.endFrame();
+                        }
+                    }
+
+                    ran++;
+
+                    // skipped frames keep their dirty rows in chip8 until the next published one
+                    if(++framesSincePublish >= frameSkip){
+                        publishFrame(chip8);
+                    }
+
+                    if(unthrottled && System.nanoTime() - now >= TURBO_SLICE_NANOS) break;
+                }
+                if(ran > 0){
+                    inputWindowStart = now;
+                }
+                beeping = chip8.beep && !turbo;
+                measureSpeed(ran);
+            }
+            else{
+                // don't catch up on the time spent paused, keys pressed meanwhile land on the next frame's first cycle
+                pacer.reset();
+                inputWindowStart = -1;
+                beeping = false;
+                speedWindowStart = -1;
+                speed = 0;
+                metrics.setSpeed(0, 0);
+            }
+            halted = !chip8.emulate;
+
+            idle = paused || (halted && !rewinding);
+            Runnable idleListener = this.idleListener;
+            if(idleListener != null && (idle || wasIdle)){
+                idleListener.run();
+            }
+            wasIdle = idle;
+
+            if(idle){
+                // commands, settings and shutdown() unpark, keys wait in the queue for the next frame
+                LockSupport.park(this);
+            }
+            else{
+                LockSupport.parkNanos(this, unthrottled ? 0 : pacer.nanosUntilNextFrame());
+            }
+        }
+
+        // closing the window keeps a movie that was still recording
+        runCommands();
+        finishRecording();
+    }
+
+    // Emulate one frame standing for real time from to to, key events from before to are applied at the
+    // cycle matching their time, earlier ones at the first cycle
+    private void runFrame(Chip8 chip8, long from, long to){
+        long startNanos = System.nanoTime();
+        long skipped = machine.getSkippedCycles();
+        long invalid = chip8.invalidOpcodes;
+        long frameStart = machine.getCycles();
+        int ipf = machine.getInstructionsPerFrame();
+        chip8.setKeys(keyMask);
+        if(recording != null){
+            recording.record(frameStart, keyMask);
+        }
+
+        KeypadEvent event;
+        while((event = input.peek()) != null && event.nanos() < to && chip8.emulate){
+            input.poll();
+            long offset = to > from ? Math.max(0, (event.nanos() - from) * ipf / (to - from)) : 0;
+            machine.runCycles(frameStart + offset - machine.getCycles());
+
+            applyKey(event);
+            chip8.setKeys(keyMask);
+            if(recording != null){
+                recording.record(machine.getCycles(), keyMask);
+            }
+            if(inputSince < 0){
+                inputSince = event.nanos();
+            }
+        }
+        machine.runCycles(frameStart + ipf - machine.getCycles());
+
+        long nanos = System.nanoTime() - startNanos;
+        metrics.recordFrame(chip8, machine.getCycles() - frameStart, machine.getSkippedCycles() - skipped,
+                chip8.invalidOpcodes - invalid, nanos);
+        if(to > from && nanos > to - from){
+            metrics.recordLateFrame();
+        }
+    }
+
+    private void applyKey(KeypadEvent event){
+        keyMask = event.pressed() ? keyMask | 1 << event.key() : keyMask & ~(1 << event.key());
+    }
+
+    // The frame carries the oldest key event applied since the last one, the UI measures input latency
+    // when it shows it
+    private void publishFrame(Chip8 chip8){
+        if(inputSince >= 0 && System.nanoTime() - inputSince > INPUT_LATENCY_LIMIT_NANOS){
+            inputSince = -1;
+        }
+        if(chip8.drawFlag){
+            int dirtyRows = chip8.takeDirtyRows();
+            if(dirtyRows != 0){
+                frames.publish(chip8.getDisplay(), chip8.getDisplay2(), chip8.displayFormat(), dirtyRows, inputSince);
+                inputSince = -1;
+            }
+            chip8.drawFlag = false;
+            framesSincePublish = 0;
+        }
+    }
+
+    private void measureSpeed(int ran){
+        long now = System.nanoTime();
+        if(speedWindowStart < 0){
+            speedWindowStart = now;
+            speedWindowFrames = 0;
+            speedWindowCycles = metrics.getCycles();
+            return;
+        }
+        speedWindowFrames += ran;
+        long elapsed = now - speedWindowStart;
+        if(elapsed >= SPEED_WINDOW_NANOS){
+            speed = (double) speedWindowFrames * FramePacer.FRAME_NANOS / elapsed;
+
+            double targetRate = turbo ? turboRate : rate;
+            double targetIps = machine.getInstructionsPerFrame() * targetRate * 1e9 / FramePacer.FRAME_NANOS;
+            metrics.setSpeed((metrics.getCycles() - speedWindowCycles) * 1e9 / elapsed, targetIps);
+            metrics.setDroppedFrames(pacer.getDroppedFrames());
+            Sound sound = this.sound;
+            if(sound != null){
+                metrics.setAudio(sound.getUnderruns(), sound.getLatencyMillis());
+            }
+
+            speedWindowStart = now;
+            speedWindowFrames = 0;
+            speedWindowCycles = metrics.getCycles();
+        }
+    }
+
+    private void runCommands(){
+        Runnable command;
+        while((command = commands.poll()) != null){
+            command.run();
+        }
+    }
+}
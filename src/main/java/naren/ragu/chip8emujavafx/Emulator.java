@@ -1,30 +1,38 @@
 package naren.ragu.chip8emujavafx;
 
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
 import javafx.application.Application;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.*;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import javafx.util.Duration;
+import java.util.concurrent.ThreadLocalRandom;
 
-import javafx.scene.Group;
 import javafx.scene.Scene;
-import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.image.PixelWriter;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.paint.Color;
 import javafx.scene.control.Label;
 
@@ -35,36 +43,61 @@ import java.util.prefs.Preferences;
 public class Emulator extends Application {
 
     private int instructionsPerFrame = 8;
-    private int frameCount = 0;
 
     private Preferences prefs;
     private Sound sound;
-
-    private static int RES_MULTIPLIER = 8;
-
-    // Image Data
-    private static int IMAGE_WIDTH = 64 * RES_MULTIPLIER;
-    private static int IMAGE_HEIGHT = 32 * RES_MULTIPLIER;
-
-    // Drawing Surface (Canvas)
-    private GraphicsContext gc;
-    private Canvas canvas;
+    private int soundSampleRate;
+    private int soundBufferSamples;
+
+    private static final int DISPLAY_WIDTH = 64;
+    private static final int DISPLAY_HEIGHT = 32;
+    private static final int HIRES_WIDTH = 128;
+    private static final int HIRES_HEIGHT = 64;
+
+    static final long DEFAULT_METRICS_INTERVAL_SECONDS = 10;
+
+    // Drawing surfaces, the display at its native resolution scaled up by the ImageView
+    int[] framePixels = new int[DISPLAY_WIDTH * DISPLAY_HEIGHT];
+    int[] hiresPixels = new int[HIRES_WIDTH * HIRES_HEIGHT];
+    private PixelBuffer<IntBuffer> pixelBuffer;
+    private PixelBuffer<IntBuffer> hiresPixelBuffer;
+    private WritableImage loresImage;
+    private WritableImage hiresImage;
+    private int shownFormat; // Chip8.displayFormat() of the frame on screen
+    private ImageView screen;
+    private StackPane screenPane;
     private Label pauseLabel;
     private VBox root;
-    PixelWriter pixelWriter;
 
     private Stage settingsWindow;
+    private CheckMenuItem controlsRewind;
+    private CheckMenuItem controlsRecordMovie;
+    private CheckMenuItem controlsTurbo;
+    private boolean fastForwardHeld;
+
+    // held to play the last few seconds backwards, unless it is bound to a keypad key
+    static final KeyCode REWIND_KEY = KeyCode.BACK_SPACE;
+    // held to fast forward in turbo
+    static final KeyCode FAST_FORWARD_KEY = KeyCode.TAB;
 
     File romFile;
 
     Chip8 chip8;
 
-    Timeline gameTimeline;
+    // Emulation runs on its own thread, the FX thread only draws the latest finished frame
+    EmulationThread emulation;
+    AnimationTimer renderLoop;
 
     Color foregroundColor = Color.rgb(247, 206, 7);
 
     Color backgroundColor = Color.rgb(146, 104, 33);
 
+    // XO-CHIP pixels set only on the second plane and on both planes
+    Color plane2Color = Color.rgb(255, 102, 0);
+    Color planesColor = Color.rgb(102, 34, 0);
+
+    String variantSetting = "auto";
+
 
     List<String> keyNames = List.of("0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F");
     List<KeyCode> defaultBindings = List.of(KeyCode.X, KeyCode.DIGIT1, KeyCode.DIGIT2, KeyCode.DIGIT3,
@@ -77,8 +110,13 @@ public class Emulator extends Application {
                                             KeyCode.S, KeyCode.D, KeyCode.Z, KeyCode.C,
                                             KeyCode.DIGIT4, KeyCode.R, KeyCode.F, KeyCode.V)
     );
-
-    char[] keyStates = new char[16];
+    // keypad key bound to each KeyCode by ordinal, -1 when unbound. Rebuilt whenever keybindings change
+    int[] keypadByKeyCode = new int[KeyCode.values().length];
+    private Label statsLabel;
+    private long statsUpdated; // System.nanoTime() of the last statsLabel update
+    static final long STATS_INTERVAL_NANOS = 250_000_000L;
+    private double inputLatencyMillis; // key event to the frame showing it being drawn, smoothed
+    static final double INPUT_LATENCY_SMOOTHING = 0.2;
 
     /*
 
@@ -94,6 +132,8 @@ public class Emulator extends Application {
 
     public Emulator(){
         chip8 = new Chip8();
+        emulation = new EmulationThread(new Machine(chip8, instructionsPerFrame));
+        updateKeypadLookup();
     }
 
     void setupPrefs(){
@@ -119,6 +159,7 @@ public class Emulator extends Application {
             String bindingValueString = controlsNode.get("key"+keyNames.get(i), defaultBindings.get(i).toString());
             keybindings.set(i, KeyCode.valueOf(bindingValueString));
         }
+        updateKeypadLookup();
 
         // load emulation mode
         boolean shift = emulationNode.getBoolean("shift", false);
@@ -127,20 +168,26 @@ public class Emulator extends Application {
         boolean jump = emulationNode.getBoolean("jump", false);
         boolean wrap = emulationNode.getBoolean("wrap", false);
         boolean vfreset = emulationNode.getBoolean("vfreset", false);
-        chip8.quirks.put("shift", shift);
-        chip8.quirks.put("memoryIncrementByX", memoryIncrementByX);
-        chip8.quirks.put("memoryLeaveIUnchanged", memoryLeaveIUnchanged);
-        chip8.quirks.put("jump", jump);
-        chip8.quirks.put("wrap", wrap);
-        chip8.quirks.put("vfreset", vfreset);
+        chip8.setQuirk("shift", shift);
+        chip8.setQuirk("memoryIncrementByX", memoryIncrementByX);
+        chip8.setQuirk("memoryLeaveIUnchanged", memoryLeaveIUnchanged);
+        chip8.setQuirk("jump", jump);
+        chip8.setQuirk("wrap", wrap);
+        chip8.setQuirk("vfreset", vfreset);
 
 
         // load emulation speed
         //emulationNode.putDouble("speedMultiplier", 1);
-        gameTimeline.setRate(emulationNode.getDouble("speedMultiplier", 1));
+        emulation.setRate(emulationNode.getDouble("speedMultiplier", 1));
+        emulation.setTurboRate(emulationNode.getDouble("turboSpeed", 0));
+        emulation.setTurboFrameSkip(emulationNode.getInt("turboFrameSkip", EmulationThread.DEFAULT_TURBO_FRAME_SKIP));
 
         // load instructions per frame
         instructionsPerFrame = emulationNode.getInt("instructionsPerFrame", 8);
+        emulation.setInstructionsPerFrame(instructionsPerFrame);
+
+        // load variant, "auto" picks it from the rom file extension
+        variantSetting = emulationNode.get("variant", "auto");
 
         // load colors
         double foregroundRed = emulationNode.getDouble("foregroundColorRed", (double)247/255);
@@ -157,45 +204,71 @@ public class Emulator extends Application {
         // in start method (no way around this i think)
 
         // load volume
+        // load audio output, reopened only when its format changed
+        int sampleRate = soundNode.getInt("sampleRate", Sound.DEFAULT_SAMPLE_RATE);
+        int bufferSamples = soundNode.getInt("bufferSamples", Sound.DEFAULT_BUFFER_SAMPLES);
+        if(sound == null || sampleRate != soundSampleRate || bufferSamples != soundBufferSamples){
+            openSound(sampleRate, bufferSamples);
+        }
         sound.setVolume(soundNode.getInt("volume", 50));
     }
 
+    // (Re)open the audio output, the emulation thread sends its next frame to the new one
+    void openSound(int sampleRate, int bufferSamples){
+        Sound previous = sound;
+        sound = Sound.open(sampleRate, bufferSamples, true, previous != null ? previous.getVolume() : 50);
+        soundSampleRate = sampleRate;
+        soundBufferSamples = bufferSamples;
+        emulation.setSound(sound);
+        if(previous != null){
+            previous.endSound();
+        }
+    }
+
     public void start(Stage primaryStage) {
         // initialize default rom
 
-        // setup sound
-        sound = new Sound(true, 50);
-        //sound.startSound();
-
         // setup preferences api
         setupPrefs();
 
         primaryStage.setTitle("Chip8 Emu");
-        primaryStage.setResizable(false);
+        primaryStage.setResizable(true);
         //primaryStage.setAlwaysOnTop(true);
 
-        // load resolution scale from prefs
-        RES_MULTIPLIER = prefs.node("emulation").getInt("screenSizeMultiplier", 8);
-        IMAGE_HEIGHT = 32 * RES_MULTIPLIER;
-        IMAGE_WIDTH = 64 * RES_MULTIPLIER;
-
         root = new VBox();
-        Group canvasGroup = new Group();
-        canvas = new Canvas(IMAGE_WIDTH, IMAGE_HEIGHT);
+
+        // frames are written into pixelBuffer and scaled with nearest neighbour filtering
+        pixelBuffer = new PixelBuffer<>(DISPLAY_WIDTH, DISPLAY_HEIGHT, IntBuffer.wrap(framePixels), PixelFormat.getIntArgbPreInstance());
+        hiresPixelBuffer = new PixelBuffer<>(HIRES_WIDTH, HIRES_HEIGHT, IntBuffer.wrap(hiresPixels), PixelFormat.getIntArgbPreInstance());
+        loresImage = new WritableImage(pixelBuffer);
+        hiresImage = new WritableImage(hiresPixelBuffer);
+        screen = new ImageView(loresImage);
+        screen.setSmooth(false);
+        screen.setPreserveRatio(true);
+
         pauseLabel = new Label();
         pauseLabel.setTextFill(Color.RED);
         pauseLabel.setStyle("-fx-font: 24 arial;");
         pauseLabel.setPadding(new Insets(5,5,5,5));
-        gc = canvas.getGraphicsContext2D();
 
-        // setup pixel writer for setting pixels
-        pixelWriter = gc.getPixelWriter();
+        // the screen follows the window size, the multiplier only sets the initial size
+        screenPane = new StackPane(screen, pauseLabel);
+        StackPane.setAlignment(pauseLabel, Pos.TOP_LEFT);
+        screenPane.setMinSize(DISPLAY_WIDTH, DISPLAY_HEIGHT);
+        screenPane.setStyle("-fx-background-color: black;");
+        setScreenSizeMultiplier(prefs.node("emulation").getInt("screenSizeMultiplier", 8));
+        screen.fitWidthProperty().bind(screenPane.widthProperty());
+        screen.fitHeightProperty().bind(screenPane.heightProperty());
+        VBox.setVgrow(screenPane, Priority.ALWAYS);
 
         MenuBar menuBar = createMenuBar(primaryStage);
 
-        canvasGroup.getChildren().addAll(canvas, pauseLabel);
+        // input and audio latency, refreshed by the render loop while the game runs
+        statsLabel = new Label();
+        statsLabel.setStyle("-fx-font: 11 monospace;");
+        statsLabel.setPadding(new Insets(2,5,2,5));
 
-        root.getChildren().addAll(menuBar, canvasGroup);
+        root.getChildren().addAll(menuBar, screenPane, statsLabel);
         primaryStage.setScene(new Scene(root));
         primaryStage.show();
 
@@ -210,6 +283,16 @@ public class Emulator extends Application {
         // create settings menu layout
         createSettingsMenu(primaryStage);
 
+        // metrics over JMX, and with -Dchip8.metrics.file=path as a Prometheus text file every
+        // chip8.metrics.interval seconds
+        Metrics metrics = emulation.getMetrics();
+        metrics.register();
+        String metricsFile = System.getProperty("chip8.metrics.file");
+        if(metricsFile != null){
+            long interval = Long.getLong("chip8.metrics.interval", DEFAULT_METRICS_INTERVAL_SECONDS);
+            metrics.startDump(Paths.get(metricsFile), Math.max(1, interval) * 1000);
+        }
+
         // fix always on top
         //primaryStage.setAlwaysOnTop(false);
     }
@@ -250,6 +333,7 @@ public class Emulator extends Application {
             keySelect.setOnAction(actionEvent -> {
                 //System.out.printf("%s binding set to %s!\n", keyNames.get(j), keySelect.getValue().toString());
                 keybindings.set(j, keySelect.getValue());
+                updateKeypadLookup();
                 controlsNode.put("key" + keyNames.get(j), keySelect.getValue().toString());
             });
 
@@ -260,6 +344,7 @@ public class Emulator extends Application {
 
         }
         controlsTabVbox.getChildren().addAll(node);
+
         controlsTabVbox.setPadding(new Insets(15,15,15,15));
         controlsTab.setContent(controlsTabVbox);
 
@@ -274,7 +359,7 @@ public class Emulator extends Application {
         emulationQuirks.setPadding(verticalPadding);
         emulationQuirks.setAlignment(Pos.CENTER_LEFT);
 
-        Label emulationQuirksHeader = new Label("Emulation Quirks (requires reload!):");
+        Label emulationQuirksHeader = new Label("Emulation Quirks:");
 
 
         HBox shiftQuirk = new HBox();
@@ -282,13 +367,11 @@ public class Emulator extends Application {
         shiftQuirk.setPadding(verticalPadding);
         Label shiftQuirkLabel = new Label("Shift Quirk:  ");
         CheckBox shiftQuirkCheckbox = new CheckBox();
-        shiftQuirkCheckbox.setSelected(chip8.quirks.get("shift"));
+        shiftQuirkCheckbox.setSelected(chip8.getQuirk("shift"));
         shiftQuirk.getChildren().addAll(shiftQuirkLabel, shiftQuirkCheckbox);
         shiftQuirkCheckbox.setOnAction((actionEvent) -> {
             emulationNode.putBoolean("shift", shiftQuirkCheckbox.isSelected());
-            chip8.quirks.put("shift", shiftQuirkCheckbox.isSelected());
-            gameTimeline.stop();
-            runEmu();
+            chip8.setQuirk("shift", shiftQuirkCheckbox.isSelected());
         });
 
         HBox memoryIncrementQuirk = new HBox();
@@ -296,14 +379,12 @@ public class Emulator extends Application {
         memoryIncrementQuirk.setPadding(verticalPadding);
         Label memoryIncrementQuirkLabel = new Label("Memory Increment by X Quirk:  ");
         CheckBox memoryIncrementQuirkCheckbox = new CheckBox();
-        memoryIncrementQuirkCheckbox.setSelected(chip8.quirks.get("memoryIncrementByX"));
+        memoryIncrementQuirkCheckbox.setSelected(chip8.getQuirk("memoryIncrementByX"));
         memoryIncrementQuirk.getChildren().addAll(memoryIncrementQuirkLabel, memoryIncrementQuirkCheckbox);
 
         memoryIncrementQuirkCheckbox.setOnAction((actionEvent) -> {
             emulationNode.putBoolean("memoryIncrementByX", memoryIncrementQuirkCheckbox.isSelected());
-            chip8.quirks.put("memoryIncrementByX", memoryIncrementQuirkCheckbox.isSelected());
-            gameTimeline.stop();
-            runEmu();
+            chip8.setQuirk("memoryIncrementByX", memoryIncrementQuirkCheckbox.isSelected());
         });
 
         HBox unchangedIQuirk = new HBox();
@@ -311,14 +392,12 @@ public class Emulator extends Application {
         unchangedIQuirk.setPadding(verticalPadding);
         Label unchangedIQuirkLabel = new Label("Leave I Unchanged Quirk:  ");
         CheckBox unchangedIQuirkCheckbox = new CheckBox();
-        unchangedIQuirkCheckbox.setSelected(chip8.quirks.get("memoryLeaveIUnchanged"));
+        unchangedIQuirkCheckbox.setSelected(chip8.getQuirk("memoryLeaveIUnchanged"));
         unchangedIQuirk.getChildren().addAll(unchangedIQuirkLabel, unchangedIQuirkCheckbox);
 
         unchangedIQuirkCheckbox.setOnAction((actionEvent) -> {
             emulationNode.putBoolean("memoryLeaveIUnchanged", unchangedIQuirkCheckbox.isSelected());
-            chip8.quirks.put("memoryLeaveIUnchanged", unchangedIQuirkCheckbox.isSelected());
-            gameTimeline.stop();
-            runEmu();
+            chip8.setQuirk("memoryLeaveIUnchanged", unchangedIQuirkCheckbox.isSelected());
         });
 
         HBox jumpQuirk = new HBox();
@@ -326,14 +405,12 @@ public class Emulator extends Application {
         jumpQuirk.setPadding(verticalPadding);
         Label jumpQuirkLabel = new Label("Jump Quirk:   ");
         CheckBox jumpQuirkCheckbox = new CheckBox();
-        jumpQuirkCheckbox.setSelected(chip8.quirks.get("jump"));
+        jumpQuirkCheckbox.setSelected(chip8.getQuirk("jump"));
         jumpQuirk.getChildren().addAll(jumpQuirkLabel, jumpQuirkCheckbox);
 
         jumpQuirkCheckbox.setOnAction((actionEvent) -> {
             emulationNode.putBoolean("jump", jumpQuirkCheckbox.isSelected());
-            chip8.quirks.put("jump", jumpQuirkCheckbox.isSelected());
-            gameTimeline.stop();
-            runEmu();
+            chip8.setQuirk("jump", jumpQuirkCheckbox.isSelected());
         });
 
         HBox wrapQuirk = new HBox();
@@ -341,14 +418,12 @@ public class Emulator extends Application {
         wrapQuirk.setPadding(verticalPadding);
         Label wrapQuirkLabel = new Label("Wrap:   ");
         CheckBox wrapQuirkCheckbox = new CheckBox();
-        wrapQuirkCheckbox.setSelected(chip8.quirks.get("wrap"));
+        wrapQuirkCheckbox.setSelected(chip8.getQuirk("wrap"));
         wrapQuirk.getChildren().addAll(wrapQuirkLabel, wrapQuirkCheckbox);
 
         wrapQuirkCheckbox.setOnAction((actionEvent) -> {
             emulationNode.putBoolean("wrap", wrapQuirkCheckbox.isSelected());
-            chip8.quirks.put("wrap", wrapQuirkCheckbox.isSelected());
-            gameTimeline.stop();
-            runEmu();
+            chip8.setQuirk("wrap", wrapQuirkCheckbox.isSelected());
         });
 
         HBox vfResetQuirk = new HBox();
@@ -356,14 +431,12 @@ public class Emulator extends Application {
         vfResetQuirk.setPadding(verticalPadding);
         Label vfResetQuirkLabel = new Label("Math VF Reset:   ");
         CheckBox vfResetQuirkCheckbox = new CheckBox();
-        vfResetQuirkCheckbox.setSelected(chip8.quirks.get("vfreset"));
+        vfResetQuirkCheckbox.setSelected(chip8.getQuirk("vfreset"));
         vfResetQuirk.getChildren().addAll(vfResetQuirkLabel, vfResetQuirkCheckbox);
 
         vfResetQuirkCheckbox.setOnAction((actionEvent) -> {
             emulationNode.putBoolean("vfreset", vfResetQuirkCheckbox.isSelected());
-            chip8.quirks.put("vfreset", vfResetQuirkCheckbox.isSelected());
-            gameTimeline.stop();
-            runEmu();
+            chip8.setQuirk("vfreset", vfResetQuirkCheckbox.isSelected());
         });
 
         emulationQuirks.getChildren().addAll(emulationQuirksHeader,
@@ -379,7 +452,9 @@ public class Emulator extends Application {
         ipfSelector.setAlignment(Pos.CENTER_LEFT);
         ipfSelector.setPadding(verticalPadding);
         Label ipfSelectorLabel = new Label("Instructions Per Frame:  ");
-        Spinner<Integer> ipfSelectorSpinner= new Spinner<>(1, 15, 8);
+        // SUPER-CHIP and XO-CHIP games are written for hundreds of instructions per frame
+        Spinner<Integer> ipfSelectorSpinner= new Spinner<>(1, 1000, 8);
+        ipfSelectorSpinner.setEditable(true);
         ipfSelectorSpinner.getValueFactory().setValue(instructionsPerFrame);
         Button ipfResetButton = new Button("Reset");
 
@@ -387,11 +462,13 @@ public class Emulator extends Application {
 
         ipfSelectorSpinner.getEditor().textProperty().addListener(actionEvent -> {
             instructionsPerFrame = ipfSelectorSpinner.getValue();
+            emulation.setInstructionsPerFrame(instructionsPerFrame);
             emulationNode.putInt("instructionsPerFrame", instructionsPerFrame);
         });
 
         ipfResetButton.setOnAction(actionEvent -> {
             instructionsPerFrame = 8;
+            emulation.setInstructionsPerFrame(instructionsPerFrame);
             ipfSelectorSpinner.getValueFactory().setValue(instructionsPerFrame);
             emulationNode.putInt("instructionsPerFrame", 8);
         });
@@ -404,7 +481,7 @@ public class Emulator extends Application {
         speedSettings.setAlignment(Pos.CENTER_LEFT);
         Label speedSettingLabel = new Label("Emulation speed multiplier:  ");
         Slider speedSlider = new Slider();
-        speedSlider.setValue(gameTimeline.getRate());
+        speedSlider.setValue(emulation.getRate());
         speedSlider.setMin(0);
         speedSlider.setMax(5);
 
@@ -412,7 +489,7 @@ public class Emulator extends Application {
 
         speedSlider.setOnMouseReleased(dragEvent -> {
             //System.out.printf("Set speed to %s\n", speedSlider.getValue());
-            gameTimeline.setRate(speedSlider.getValue());
+            emulation.setRate(speedSlider.getValue());
             emulationNode.putDouble("speedMultiplier", speedSlider.getValue());
             speedSettingValue.setText(String.format("    %.2fx", speedSlider.getValue()));
         });
@@ -420,7 +497,7 @@ public class Emulator extends Application {
 
         Button speedSettingsResetButton = new Button("Reset multiplier");
         speedSettingsResetButton.setOnAction(actionEvent -> {
-            gameTimeline.setRate(1f);
+            emulation.setRate(1f);
             speedSlider.setValue(1f);
             speedSettingValue.setText(String.format("    %.2fx", 1f));
             emulationNode.putDouble("speedMultiplier", speedSlider.getValue());
@@ -432,6 +509,34 @@ public class Emulator extends Application {
         speedSettings.getChildren().addAll(speedSettingLabel, speedSlider, speedSettingValue);
         speedSettingVerticalBox.getChildren().addAll(speedSettings,speedSettingsResetButton);
 
+        // turbo settings
+
+        HBox turboSettings = new HBox();
+        turboSettings.setPadding(verticalPadding);
+        turboSettings.setAlignment(Pos.CENTER_LEFT);
+        Label turboSpeedLabel = new Label("Turbo speed:  ");
+        ComboBox<String> turboSpeed = new ComboBox<>();
+        turboSpeed.getItems().addAll("Unlimited", "2x", "4x", "8x", "16x");
+        turboSpeed.setValue(emulation.getTurboRate() > 0 ? String.format("%dx", (int) emulation.getTurboRate()) : "Unlimited");
+        turboSpeed.setOnAction(actionEvent -> {
+            String value = turboSpeed.getValue();
+            double turboRate = value.equals("Unlimited") ? 0 : Double.parseDouble(value.replace("x", ""));
+            emulation.setTurboRate(turboRate);
+            emulationNode.putDouble("turboSpeed", turboRate);
+        });
+
+        Label turboFrameSkipLabel = new Label("    Draw every  ");
+        Spinner<Integer> turboFrameSkipSpinner = new Spinner<>(1, 60, EmulationThread.DEFAULT_TURBO_FRAME_SKIP);
+        turboFrameSkipSpinner.getValueFactory().setValue(emulation.getTurboFrameSkip());
+        turboFrameSkipSpinner.setPrefWidth(70);
+        turboFrameSkipSpinner.getEditor().textProperty().addListener(actionEvent -> {
+            emulation.setTurboFrameSkip(turboFrameSkipSpinner.getValue());
+            emulationNode.putInt("turboFrameSkip", turboFrameSkipSpinner.getValue());
+        });
+        Label turboFrameSkipUnit = new Label("  frames");
+
+        turboSettings.getChildren().addAll(turboSpeedLabel, turboSpeed, turboFrameSkipLabel, turboFrameSkipSpinner, turboFrameSkipUnit);
+
         // COLOR PALETTES
         VBox colorPickerElements = new VBox();
 
@@ -445,6 +550,7 @@ public class Emulator extends Application {
             emulationNode.putDouble("foregroundColorRed", foregroundColor.getRed());
             emulationNode.putDouble("foregroundColorGreen", foregroundColor.getGreen());
             emulationNode.putDouble("foregroundColorBlue", foregroundColor.getBlue());
+            redrawGraphics();
         });
         foregroundColorPickerResetButton.setOnAction(actionEvent -> {
             foregroundColor = Color.rgb(247, 206, 7);
@@ -452,6 +558,7 @@ public class Emulator extends Application {
             emulationNode.putDouble("foregroundColorRed", foregroundColor.getRed());
             emulationNode.putDouble("foregroundColorGreen", foregroundColor.getGreen());
             emulationNode.putDouble("foregroundColorBlue", foregroundColor.getBlue());
+            redrawGraphics();
         });
         foregroundColorPickerElements.getChildren().addAll(foregroundColorPickerLabel, foregroundColorPicker, foregroundColorPickerResetButton);
         foregroundColorPickerElements.setAlignment(Pos.CENTER_LEFT);
@@ -466,6 +573,7 @@ public class Emulator extends Application {
             emulationNode.putDouble("backgroundColorRed", backgroundColor.getRed());
             emulationNode.putDouble("backgroundColorGreen", backgroundColor.getGreen());
             emulationNode.putDouble("backgroundColorBlue", backgroundColor.getBlue());
+            redrawGraphics();
         });
         backgroundColorPickerResetButton.setOnAction(actionEvent -> {
             backgroundColor = Color.rgb(146, 104, 33);
@@ -473,6 +581,7 @@ public class Emulator extends Application {
             emulationNode.putDouble("backgroundColorRed", backgroundColor.getRed());
             emulationNode.putDouble("backgroundColorGreen", backgroundColor.getGreen());
             emulationNode.putDouble("backgroundColorBlue", backgroundColor.getBlue());
+            redrawGraphics();
         });
         backgroundColorPickerElements.getChildren().addAll(backgroundColorPickerLabel, backgroundColorPicker, backgroundColorPickerResetButton);
         backgroundColorPickerElements.setAlignment(Pos.CENTER_LEFT);
@@ -486,7 +595,7 @@ public class Emulator extends Application {
         screenSizeElements.setPadding(verticalPadding);
         screenSizeElements.setAlignment(Pos.CENTER_LEFT);
 
-        Label screenSizeLabel = new Label("Screen Size Multiplier (requires reopening!): ");
+        Label screenSizeLabel = new Label("Screen Size Multiplier: ");
         int maxMultX = ((int) Screen.getPrimary().getVisualBounds().getWidth())/64;
         int maxMultY = ((int) Screen.getPrimary().getVisualBounds().getHeight())/32;
         int maxMultiplier = Math.min(maxMultX, maxMultY);
@@ -498,11 +607,33 @@ public class Emulator extends Application {
         }
         screenSizeMultiplier.setValue(emulationNode.getInt("screenSizeMultiplier", 8));
 
-        screenSizeMultiplier.setOnAction(actionEvent -> emulationNode.putInt("screenSizeMultiplier", screenSizeMultiplier.getValue()));
+        screenSizeMultiplier.setOnAction(actionEvent -> {
+            emulationNode.putInt("screenSizeMultiplier", screenSizeMultiplier.getValue());
+            setScreenSizeMultiplier(screenSizeMultiplier.getValue());
+            parentStage.sizeToScene();
+        });
 
         screenSizeElements.getChildren().addAll(screenSizeLabel, screenSizeMultiplier);
 
-        emulationSettingsTabVbox.getChildren().addAll(emulationQuirks, ipfSelector, speedSettingVerticalBox, colorPickerElements, screenSizeElements);
+        // variant, applied the next time a rom is loaded
+        HBox variantElements = new HBox();
+        variantElements.setAlignment(Pos.CENTER_LEFT);
+        variantElements.setPadding(verticalPadding);
+        Label variantLabel = new Label("Variant:  ");
+        ComboBox<String> variantSelect = new ComboBox<>();
+        variantSelect.getItems().add("auto");
+        for(Variant variant : Variant.values()){
+            variantSelect.getItems().add(variant.toString());
+        }
+        variantSelect.setValue(variantSetting);
+        variantSelect.setOnAction(actionEvent -> {
+            variantSetting = variantSelect.getValue();
+            emulationNode.put("variant", variantSetting);
+        });
+        Label variantNote = new Label("  (from the next rom load, auto goes by .ch8/.sc8/.xo8)");
+        variantElements.getChildren().addAll(variantLabel, variantSelect, variantNote);
+
+        emulationSettingsTabVbox.getChildren().addAll(emulationQuirks, ipfSelector, variantElements, speedSettingVerticalBox, turboSettings, colorPickerElements, screenSizeElements);
         emulationSettingsTabVbox.setPadding(new Insets(15,15,15,15));
         emulationSettingsTab.setContent(emulationSettingsTabVbox);
 
@@ -540,8 +671,32 @@ public class Emulator extends Application {
 
         soundVolumeHbox.getChildren().addAll(volumeSettingLabel, volumeSlider, volumeValue);
 
+        // smaller buffers cut the latency until the device starts to underrun
+        HBox audioFormatHbox = new HBox();
+        audioFormatHbox.setPadding(verticalPadding);
+        audioFormatHbox.setAlignment(Pos.CENTER_LEFT);
+        Label sampleRateLabel = new Label("Sample rate:  ");
+        ComboBox<Integer> sampleRateSelect = new ComboBox<>();
+        sampleRateSelect.getItems().addAll(22050, 44100, 48000);
+        sampleRateSelect.setValue(soundSampleRate);
+        sampleRateSelect.setOnAction(actionEvent -> {
+            soundNode.putInt("sampleRate", sampleRateSelect.getValue());
+            openSound(sampleRateSelect.getValue(), soundBufferSamples);
+        });
+
+        Label bufferLabel = new Label("  Buffer:  ");
+        ComboBox<Integer> bufferSelect = new ComboBox<>();
+        bufferSelect.getItems().addAll(256, 512, 1024, 2048, 4096);
+        bufferSelect.setValue(soundBufferSamples);
+        bufferSelect.setOnAction(actionEvent -> {
+            soundNode.putInt("bufferSamples", bufferSelect.getValue());
+            openSound(soundSampleRate, bufferSelect.getValue());
+        });
+        Label bufferUnit = new Label(" samples");
+        audioFormatHbox.getChildren().addAll(sampleRateLabel, sampleRateSelect, bufferLabel, bufferSelect, bufferUnit);
+
         volumeSettingVbox.setAlignment(Pos.CENTER);
-        volumeSettingVbox.getChildren().addAll(soundVolumeHbox, volumeResetButton);
+        volumeSettingVbox.getChildren().addAll(soundVolumeHbox, volumeResetButton, audioFormatHbox);
 
         soundTabVbox.getChildren().addAll(volumeSettingVbox);
 
@@ -586,7 +741,7 @@ public class Emulator extends Application {
                 settingsWindow.close();
                 createSettingsMenu(parentStage);
 
-                gameTimeline.stop();
+                controlsRecordMovie.setSelected(false);
                 runEmu();
 
             } catch (BackingStoreException e) {
@@ -615,19 +770,21 @@ public class Emulator extends Application {
         MenuItem fileLoad = new MenuItem("Load Rom...");
         fileLoad.setOnAction(event -> {
             FileChooser fileChooser = new FileChooser();
-            FileChooser.ExtensionFilter extensionFilter = new FileChooser.ExtensionFilter("Chip8 ROM files (*.ch8, *.rom)", "*.ch8", "*.rom");
+            FileChooser.ExtensionFilter extensionFilter = new FileChooser.ExtensionFilter("Chip8 ROM files (*.ch8, *.sc8, *.xo8, *.rom)", "*.ch8", "*.sc8", "*.xo8", "*.rom");
             fileChooser.getExtensionFilters().add(extensionFilter);
             fileChooser.setTitle("Select a ROM file...");
-            boolean prev = chip8.emulate;
-            chip8.emulate = false;
+            boolean prev = emulation.isPaused();
+            emulation.setPaused(true);
             romFile = fileChooser.showOpenDialog(primaryStage);
             if(romFile == null){
-                chip8.emulate = prev;
+                emulation.setPaused(prev);
                 return;
             }
-            if(romFile.getName().endsWith(".rom")  || romFile.getName().endsWith(".ch8")){
-                chip8.emulate = true;
-                gameTimeline.stop();
+            String name = romFile.getName();
+            if(name.endsWith(".rom") || name.endsWith(".ch8") || name.endsWith(".sc8") || name.endsWith(".xo8")){
+                emulation.setPaused(false);
+                // loading another rom ends a recording
+                controlsRecordMovie.setSelected(false);
                 runEmu();
             }
 
@@ -637,64 +794,112 @@ public class Emulator extends Application {
             Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
             alert.setTitle("Exit");
             alert.setContentText("Are you sure you want to exit?");
-            boolean prev = chip8.emulate;
-            chip8.emulate = false;
+            boolean prev = emulation.isPaused();
+            emulation.setPaused(true);
             Optional<ButtonType> result = alert.showAndWait();
             if(result.get() == ButtonType.OK){
                 primaryStage.close();
                 System.exit(0);
             }
-            chip8.emulate = prev;
+            emulation.setPaused(prev);
         });
 
         // Emulation menu
         Menu controlsMenu = new Menu("Emulation");
 
         MenuItem controlsTogglePlay = new MenuItem("Pause/Play");
-        controlsTogglePlay.setOnAction(event -> chip8.emulate = !chip8.emulate);
+        controlsTogglePlay.setOnAction(event -> emulation.setPaused(!emulation.isPaused()));
         MenuItem controlsSaveState = new MenuItem("Save State");
         controlsSaveState.setOnAction(event -> {
-            boolean prev = chip8.emulate;
-            chip8.emulate = false;
+            boolean prev = emulation.isPaused();
+            emulation.setPaused(true);
             FileChooser fileChooser = new FileChooser();
             FileChooser.ExtensionFilter extensionFilter = new FileChooser.ExtensionFilter("Chip8 Save State", "*.chip8state");
             fileChooser.getExtensionFilters().add(extensionFilter);
             File path = fileChooser.showSaveDialog(primaryStage);
             if(path == null){
-                chip8.emulate = prev;
+                emulation.setPaused(prev);
                 return;
             }
-            saveState(path.getPath());
-            chip8.emulate = prev;
+            // serialize between frames so the state is never torn
+            emulation.execute(() -> saveState(path.getPath(), emulation.getMachine().getChip8()));
+            emulation.setPaused(prev);
         });
         MenuItem controlsLoadState = new MenuItem("Load State");
         controlsLoadState.setOnAction(event -> {
-            boolean prev = chip8.emulate;
-            chip8.emulate = false;
+            boolean prev = emulation.isPaused();
+            emulation.setPaused(true);
             FileChooser fileChooser = new FileChooser();
             FileChooser.ExtensionFilter extensionFilter = new FileChooser.ExtensionFilter("Chip8 Save State", "*.chip8state");
             fileChooser.getExtensionFilters().add(extensionFilter);
             File path = fileChooser.showOpenDialog(primaryStage);
             if(path == null) {
-                chip8.emulate = prev;
+                emulation.setPaused(prev);
                 return;
             }
             loadState(path.getPath());
-            chip8.emulate = prev;
+            emulation.setPaused(prev);
         });
+        controlsRewind = new CheckMenuItem("Rewind (hold Backspace)");
+        controlsRewind.selectedProperty().addListener((observable, wasSelected, selected) -> emulation.setRewinding(selected));
+        controlsTurbo = new CheckMenuItem("Turbo (hold Tab)");
+        controlsTurbo.setOnAction(event -> updateTurbo());
+        Menu controlsQuickSave = new Menu("Quick Save");
+        Menu controlsQuickLoad = new Menu("Quick Load");
+        for(int i = 0; i < QuickSaveSlots.DEFAULT_SLOTS; i++){
+            final int slot = i;
+            KeyCode slotKey = KeyCode.valueOf("F" + (slot + 1));
+
+            MenuItem save = new MenuItem("Slot " + (slot + 1));
+            save.setAccelerator(new KeyCodeCombination(slotKey, KeyCombination.SHIFT_DOWN));
+            save.setOnAction(event -> emulation.quickSave(slot, getQuickSavePath(slot)));
+            controlsQuickSave.getItems().add(save);
+
+            MenuItem load = new MenuItem("Slot " + (slot + 1));
+            load.setAccelerator(new KeyCodeCombination(slotKey));
+            load.setOnAction(event -> emulation.quickLoad(slot));
+            controlsQuickLoad.getItems().add(load);
+        }
+        CheckMenuItem controlsFlushQuickSaves = new CheckMenuItem("Write Quick Saves to Disk");
+        controlsFlushQuickSaves.setSelected(prefs.node("emulation").getBoolean("flushQuickSaves", false));
+        controlsFlushQuickSaves.setOnAction(event -> prefs.node("emulation").putBoolean("flushQuickSaves", controlsFlushQuickSaves.isSelected()));
+
+        // restarts the rom and records keypad input for replaying with the headless runner
+        controlsRecordMovie = new CheckMenuItem("Record Input Movie...");
+        controlsRecordMovie.setOnAction(event -> {
+            if(!controlsRecordMovie.isSelected()){
+                emulation.stopRecording();
+                return;
+            }
+            boolean prev = emulation.isPaused();
+            emulation.setPaused(true);
+            FileChooser fileChooser = new FileChooser();
+            FileChooser.ExtensionFilter extensionFilter = new FileChooser.ExtensionFilter("Chip8 Input Movie", "*.c8mv");
+            fileChooser.getExtensionFilters().add(extensionFilter);
+            File path = fileChooser.showSaveDialog(primaryStage);
+            emulation.setPaused(prev);
+            if(path == null){
+                controlsRecordMovie.setSelected(false);
+                return;
+            }
+            runEmu();
+            emulation.startRecording(ThreadLocalRandom.current().nextLong(), path.toPath());
+        });
+
         MenuItem controlsChangeSettings = new MenuItem("Settings");
         controlsChangeSettings.setOnAction(event -> {
-            boolean prev = chip8.emulate;
-            chip8.emulate = false;
+            boolean prev = emulation.isPaused();
+            emulation.setPaused(true);
 
             settingsWindow.showAndWait();
 
-            chip8.emulate = prev;
+            emulation.setPaused(prev);
         });
 
         // add options to submenus
         fileMenu.getItems().addAll(fileLoad, fileExit);
-        controlsMenu.getItems().addAll(controlsTogglePlay, controlsSaveState, controlsLoadState, controlsChangeSettings);
+        controlsMenu.getItems().addAll(controlsTogglePlay, controlsSaveState, controlsLoadState, controlsQuickSave, controlsQuickLoad,
+                controlsFlushQuickSaves, controlsRewind, controlsTurbo, controlsRecordMovie, controlsChangeSettings);
 
         // add all submenus to menubar
         menuBar.getMenus().addAll(fileMenu, controlsMenu);
@@ -702,19 +907,13 @@ public class Emulator extends Application {
         return menuBar;
     }
 
-    void saveState(String path){
+    void saveState(String path, Chip8 chip8){
         try {
-            FileOutputStream file = new FileOutputStream(path);
-            ObjectOutputStream out = new ObjectOutputStream(file);
-
-            out.writeObject(chip8);
-
-            out.close();
-            file.close();
+            SaveState.write(chip8, Paths.get(path));
         }
         catch(IOException ex)
         {
-            System.out.println("IOException caught when saving state!");
+            System.out.println("IOException caught when saving state! " + ex.getMessage());
         }
 
     }
@@ -722,129 +921,290 @@ public class Emulator extends Application {
     void loadState(String path){
         try
         {
-            // Read object from file
-            FileInputStream file = new FileInputStream(path);
-            ObjectInputStream in = new ObjectInputStream(file);
-
-            // Deserialization of object
-            chip8 = (Chip8)in.readObject();
-            loadPrefs();
-
-            in.close();
-            file.close();
+            ByteBuffer state = SaveState.read(Paths.get(path));
+
+            // restore between frames on the emulation thread
+            emulation.execute(() -> {
+                Chip8 target = emulation.getMachine().getChip8();
+                if(emulation.isRecording()){
+                    System.out.println("States cannot be loaded while recording an input movie!");
+                    return;
+                }
+                try {
+                    SaveState.decode(state, target);
+                } catch (IOException ex) {
+                    System.out.println("IOException caught when loading state! " + ex.getMessage());
+                    return;
+                }
+                // the quirks chosen in settings win over the ones in the state
+                target.nextQuirkProfile = QuirkProfile.of(target.quirks);
+                emulation.getRewind().clear();
+                emulation.refreshDisplay();
+            });
         }
 
         catch(IOException ex)
         {
-            System.out.println("IOException caught when loading state!");
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            System.out.println("IOException caught when loading state! " + ex.getMessage());
         }
     }
 
+    // Quick saves are written next to the rom when enabled, never for the demo rom
+    Path getQuickSavePath(int slot){
+        if(romFile == null || !prefs.node("emulation").getBoolean("flushQuickSaves", false)){
+            return null;
+        }
+        return Paths.get(romFile.getPath() + ".slot" + (slot + 1) + ".chip8state");
+    }
+
     void setupInput(Stage primaryStage){
+        // filtered so tab never moves focus around the window
+        primaryStage.addEventFilter(KeyEvent.KEY_PRESSED, (key) -> {
+            if(key.getCode() == FAST_FORWARD_KEY && keypadKey(key.getCode()) < 0){
+                fastForwardHeld = true;
+                updateTurbo();
+                key.consume();
+            }
+        });
+        primaryStage.addEventFilter(KeyEvent.KEY_RELEASED, (key) -> {
+            if(key.getCode() == FAST_FORWARD_KEY && keypadKey(key.getCode()) < 0){
+                fastForwardHeld = false;
+                updateTurbo();
+                key.consume();
+            }
+        });
+
         primaryStage.addEventHandler(KeyEvent.KEY_PRESSED, (key) -> {
-              if(keybindings.contains(key.getCode())){
-                  int index = keybindings.indexOf(key.getCode());
-                  keyStates[index] = 1;
+              int index = keypadKey(key.getCode());
+              if(index >= 0){
+                  emulation.pressKey(index);
+              }
+              else if(key.getCode() == REWIND_KEY){
+                  controlsRewind.setSelected(true);
               }
         });
 
         primaryStage.addEventHandler(KeyEvent.KEY_RELEASED, (key) -> {
-              if(keybindings.contains(key.getCode())){
-                  int index = keybindings.indexOf(key.getCode());
-                  keyStates[index] = 0;
+              int index = keypadKey(key.getCode());
+              if(index >= 0){
+                  emulation.releaseKey(index);
+              }
+              else if(key.getCode() == REWIND_KEY){
+                  controlsRewind.setSelected(false);
               }
         });
     }
 
-    char[] getInput(){
-        return keyStates;
+    int keypadKey(KeyCode code){
+        return keypadByKeyCode[code.ordinal()];
     }
 
-    void drawGraphics(byte[] gfx){
-        for(int x = 0; x < IMAGE_WIDTH; x++) {
-            for(int y = 0; y < IMAGE_HEIGHT; y++) {
-                int pixel = gfx[(x/RES_MULTIPLIER) + ((y/RES_MULTIPLIER)*64)];
+    void updateKeypadLookup(){
+        Arrays.fill(keypadByKeyCode, -1);
+        // walked backwards so a KeyCode bound twice goes to the lower keypad key
+        for(int i = keybindings.size() - 1; i >= 0; i--){
+            keypadByKeyCode[keybindings.get(i).ordinal()] = i;
+        }
+    }
 
-                Color pixelColor;
-                if(pixel == 0){
-                    pixelColor = backgroundColor;
-                }
-                else{
-                    pixelColor = foregroundColor;
-                }
+    // Turbo runs while the menu toggle is on or the fast forward key is held
+    void updateTurbo(){
+        emulation.setTurbo(controlsTurbo.isSelected() || fastForwardHeld);
+    }
 
-                pixelWriter.setColor(x,y,pixelColor);
+    void setScreenSizeMultiplier(int multiplier){
+        screenPane.setPrefSize(DISPLAY_WIDTH * multiplier, DISPLAY_HEIGHT * multiplier);
+    }
+
+    // A frame in a Chip8.displayFormat() format: hires rows take two words, a second XO-CHIP plane starts
+    // at Chip8.PLANE_WORDS. Only rows set in dirtyRows are redrawn, in hires bit y stands for rows 2y and 2y + 1
+    void drawGraphics(long[] frame, int format, int dirtyRows){
+        if(format != shownFormat){
+            showFormat(format);
+            dirtyRows = Chip8.ALL_ROWS;
+        }
+        if(format == 0){
+            drawGraphics(frame, dirtyRows);
+            return;
+        }
+        if(dirtyRows == 0) return;
+
+        boolean hires = (format & Chip8.FORMAT_HIRES) != 0;
+        boolean planes = (format & Chip8.FORMAT_PLANES) != 0;
+        // indexed by plane 2 bit << 1 | plane 1 bit
+        int[] palette = {toArgb(backgroundColor), toArgb(foregroundColor), toArgb(plane2Color), toArgb(planesColor)};
+        int[] pixels = hires ? hiresPixels : framePixels;
+        int width = hires ? HIRES_WIDTH : DISPLAY_WIDTH;
+        int rowWords = hires ? 2 : 1;
+
+        for(int rows = dirtyRows; rows != 0; rows &= rows - 1) {
+            int bit = Integer.numberOfTrailingZeros(rows);
+            for(int y = bit * rowWords; y < (bit + 1) * rowWords; y++) {
+                for(int w = 0; w < rowWords; w++) {
+                    int word = y * rowWords + w;
+                    long first = frame[word];
+                    long second = planes ? frame[Chip8.PLANE_WORDS + word] : 0;
+                    int offset = y * width + w * Long.SIZE;
+                    for(int x = 0; x < Long.SIZE; x++) {
+                        pixels[offset + x] = palette[(int) (first << x >>> 63) | (int) (second << x >>> 63) << 1];
+                    }
+                }
             }
         }
+
+        PixelBuffer<IntBuffer> target = hires ? hiresPixelBuffer : pixelBuffer;
+        if(target != null){
+            int first = Integer.numberOfTrailingZeros(dirtyRows) * rowWords;
+            int last = (32 - Integer.numberOfLeadingZeros(dirtyRows)) * rowWords - 1;
+            target.updateBuffer(buffer -> new Rectangle2D(0, first, width, last - first + 1));
+        }
     }
 
-    void resetTimeline(){
-        if(gameTimeline != null) gameTimeline.stop();
-        gameTimeline = new Timeline();
-        gameTimeline.setCycleCount(Timeline.INDEFINITE);
+    // Switch the screen between the 64x32 and 128x64 surfaces
+    void showFormat(int format){
+        shownFormat = format;
+        if(screen != null){
+            screen.setImage((format & Chip8.FORMAT_HIRES) != 0 ? hiresImage : loresImage);
+        }
     }
 
-    void runEmu(){
-        resetTimeline();
-        chip8.initialize();
+    // display holds one word per row, bit 63 is the leftmost pixel. Only rows set in dirtyRows are redrawn
+    void drawGraphics(long[] display, int dirtyRows){
+        if(dirtyRows == 0) return;
+
+        int foreground = toArgb(foregroundColor);
+        int background = toArgb(backgroundColor);
 
-        if(romFile != null){
-            chip8.loadGame(romFile.getAbsolutePath());
+        for(int rows = dirtyRows; rows != 0; rows &= rows - 1) {
+            int y = Integer.numberOfTrailingZeros(rows);
+            long row = display[y];
+            int offset = y * DISPLAY_WIDTH;
+            for(int x = 0; x < DISPLAY_WIDTH; x++) {
+                framePixels[offset + x] = row << x < 0 ? foreground : background;
+            }
         }
-        else{
-            chip8.loadGame(getClass().getResourceAsStream("loadGame.rom"));
+
+        // upload the span from the first to the last changed row
+        if(pixelBuffer != null){
+            int first = Integer.numberOfTrailingZeros(dirtyRows);
+            int last = 31 - Integer.numberOfLeadingZeros(dirtyRows);
+            pixelBuffer.updateBuffer(buffer -> new Rectangle2D(0, first, DISPLAY_WIDTH, last - first + 1));
         }
+    }
 
-        gameTimeline.getKeyFrames().addAll(getEmulationKeyFrame());
-        gameTimeline.play();
+    // Repaint the last frame, after a color change for example
+    void redrawGraphics(){
+        TripleBuffer frames = emulation.getFrames();
+        drawGraphics(frames.front(), frames.frontFormat(), Chip8.ALL_ROWS);
     }
 
-    KeyFrame getEmulationKeyFrame(){
-        return new KeyFrame(Duration.seconds(1f/(instructionsPerFrame * 60)), (actionEvent) -> {
-            if(chip8.emulate) {
-                if(!pauseLabel.getText().isEmpty()){
-                    pauseLabel.setText("");
-                }
+    // Opaque, so it is valid premultiplied ARGB as well
+    static int toArgb(Color color){
+        return 0xFF000000
+                | (int) Math.round(color.getRed() * 255) << 16
+                | (int) Math.round(color.getGreen() * 255) << 8
+                | (int) Math.round(color.getBlue() * 255);
+    }
 
-                chip8.setKeys(getInput());
+    void runEmu(){
+        Chip8 target = chip8;
+        File rom = romFile;
+        int ipf = instructionsPerFrame;
+        Variant variant = "auto".equals(variantSetting)
+                ? (rom != null ? Variant.forRom(rom.getName()) : Variant.CHIP8)
+                : Variant.of(variantSetting);
+
+        // (re)start the rom between frames on the emulation thread
+        emulation.execute(() -> {
+            target.setVariant(variant);
+            Machine machine = new Machine(target, ipf);
+            machine.reset();
+
+            if(rom != null){
+                target.loadGame(rom.getAbsolutePath());
+            }
+            else{
+                target.loadGame(getClass().getResourceAsStream("loadGame.rom"));
+            }
 
-                if(frameCount % instructionsPerFrame == 0) {
+            emulation.setMachine(machine);
+        });
 
-                    if (chip8.beep) {
-                        sound.startSound();
-                    } else {
-                        sound.stopSound();
-                    }
-                    chip8.updateTimers();
+        if(emulation.getState() == Thread.State.NEW){
+            renderLoop = createRenderLoop();
+            renderLoop.start();
+            emulation.setIdleListener(() -> Platform.runLater(this::updateRenderLoop));
+            emulation.start();
+        }
+    }
 
-                }
+    // Nothing changes on screen while emulation is paused or halted, so the render loop only runs while
+    // frames are emulated. Updates once more before stopping to show the last frame and the pause label
+    void updateRenderLoop(){
+        render();
+        if(emulation.isIdle()){
+            renderLoop.stop();
+        }
+        else{
+            renderLoop.start();
+        }
+    }
 
-                chip8.emulateCycle();
+    AnimationTimer createRenderLoop(){
+        return new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                render();
+            }
+        };
+    }
 
-                if(frameCount % instructionsPerFrame == 0) {
-                    if (chip8.drawFlag) {
-                        drawGraphics(chip8.getGfx());
-                        chip8.drawFlag = false;
-                    }
-                    frameCount = 0;
-                }
+    void render(){
+        boolean stopped = emulation.isPaused() || emulation.isHalted();
+        String pauseText = stopped && !"demo".equals(chip8.romPath) ? "Paused" : "";
+        if(emulation.isRewinding() && !emulation.isPaused()){
+            pauseText = "Rewinding";
+        }
+        else if(emulation.isTurbo() && !stopped){
+            pauseText = String.format("Turbo %.1fx", emulation.getSpeed());
+        }
+        if(!pauseLabel.getText().equals(pauseText)){
+            pauseLabel.setText(pauseText);
+        }
 
-                frameCount++;
+        long now = System.nanoTime();
+        if(now - statsUpdated >= STATS_INTERVAL_NANOS){
+            statsUpdated = now;
+            String audio = sound != null && sound.getSink().isRealtime()
+                    ? String.format("audio latency %.1f ms, %d underruns", sound.getLatencyMillis(), sound.getUnderruns())
+                    : "no audio device";
+            String stats = String.format("Input latency %.1f ms, %s", inputLatencyMillis, audio);
+            if(!statsLabel.getText().equals(stats)){
+                statsLabel.setText(stats);
             }
-            else{
-                if(!chip8.romPath.equals("demo")){
-                    pauseLabel.setText("Paused");
-                }
-                sound.stopSound();
+        }
+
+        // only the most recent finished frame is drawn
+        TripleBuffer frames = emulation.getFrames();
+        if (frames.acquire()) {
+            long start = System.nanoTime();
+            drawGraphics(frames.front(), frames.frontFormat(), frames.frontDirtyRows());
+            long end = System.nanoTime();
+            emulation.getMetrics().recordRender(end - start);
+            if(frames.frontInputNanos() >= 0){
+                double latency = (end - frames.frontInputNanos()) / 1e6;
+                inputLatencyMillis += (latency - inputLatencyMillis) * INPUT_LATENCY_SMOOTHING;
             }
-        });
+        }
     }
 
     @Override
     public void stop(){
+        emulation.shutdown();
         sound.endSound();
+        Metrics metrics = emulation.getMetrics();
+        metrics.stopDump();
+        metrics.unregister();
     }
 
     public static void main(String[] args) {
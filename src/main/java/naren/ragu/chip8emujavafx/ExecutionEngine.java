@@ -0,0 +1,23 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * Executes instructions on behalf of a {@link Machine}.
+ * Every engine must leave the Chip8 in exactly the state the interpreter would.
+ */
+public interface ExecutionEngine {
+
+    ExecutionEngine INTERPRETER = (chip8, cycles) -> {
+        int executed = 0;
+        while(executed < cycles && chip8.emulate){
+            if(chip8.keyWaitRegister >= 0){
+                return cycles; // the rest of the budget passes waiting on FX0A
+            }
+            chip8.emulateCycle();
+            executed++;
+        }
+        return executed;
+    };
+
+    // Execute up to cycles instructions within the current frame, returns how many were executed
+    int execute(Chip8 chip8, int cycles);
+}
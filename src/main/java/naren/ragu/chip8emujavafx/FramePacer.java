@@ -0,0 +1,81 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * Works out how many 60 Hz emulation frames are due at each display tick.
+ *
+ * Elapsed wall clock time (scaled by the speed multiplier) is added to an accumulator and whole
+ * frames are taken out of it, so fractional frames carry over and speed never drifts from real time.
+ * Ticks that arrive slightly early still get their frame, keeping one frame per vsync at 60 Hz.
+ * After a stall only a bounded number of frames is caught up, the rest of the backlog is dropped.
+ */
+public class FramePacer {
+
+    public static final long FRAME_NANOS = 1_000_000_000L / 60;
+
+    // a tick this close to the next frame is treated as on time
+    static final long EARLY_TOLERANCE_NANOS = 2_000_000L;
+    static final int DEFAULT_MAX_CATCH_UP_FRAMES = 4;
+
+    private double rate = 1;
+    private int maxCatchUpFrames = DEFAULT_MAX_CATCH_UP_FRAMES;
+
+    private long lastTick = -1;
+    private double accumulated; // emulated nanoseconds owed
+
+    private long droppedFrames;
+
+    public double getRate(){
+        return rate;
+    }
+
+    public void setRate(double rate){
+        this.rate = Math.max(0, rate);
+    }
+
+    public void setMaxCatchUpFrames(int maxCatchUpFrames){
+        this.maxCatchUpFrames = Math.max(1, maxCatchUpFrames);
+    }
+
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    // Forget elapsed time, the next tick starts a fresh timeline (after a pause for example)
+    public void reset(){
+        lastTick = -1;
+        accumulated = 0;
+    }
+
+    // Returns how many frames should be emulated at the given System.nanoTime()
+    public int framesDue(long now){
+        if(lastTick < 0){
+            lastTick = now;
+            return rate > 0 ? 1 : 0;
+        }
+
+        accumulated += (now - lastTick) * rate;
+        lastTick = now;
+
+        int frames = (int) Math.min(Integer.MAX_VALUE, (long) ((accumulated + EARLY_TOLERANCE_NANOS) / FRAME_NANOS));
+        if(frames <= 0){
+            return 0;
+        }
+
+        accumulated -= (double) frames * FRAME_NANOS;
+
+        if(frames > maxCatchUpFrames){
+            droppedFrames += frames - maxCatchUpFrames;
+            frames = maxCatchUpFrames;
+        }
+        return frames;
+    }
+
+    // Wall clock nanoseconds until the next frame falls due, for sleeping between ticks
+    public long nanosUntilNextFrame(){
+        if(rate <= 0){
+            return FRAME_NANOS;
+        }
+        double owed = FRAME_NANOS - EARLY_TOLERANCE_NANOS - accumulated;
+        return Math.max(0, (long) (owed / rate));
+    }
+}
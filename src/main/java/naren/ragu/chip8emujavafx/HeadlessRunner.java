@@ -0,0 +1,475 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Command line entry point that runs a rom without a window, as fast as the host allows.
+ *
+ * Usage: HeadlessRunner &lt;rom&gt; [--cycles N | --frames N] [--ipf N] [--quirks shift,wrap,...] [--mem]
+ *                       [--engine interpreter|recompiler] [--verify]
+ *                       [--replay movie.c8mv [--hashes out.txt] [--check expected.txt]] [--lockstep N]
+ *                       [--audio out.wav [--sample-rate N]] [--no-idle-skip] [--variant chip8|schip|xochip]
+ *                       [--metrics out.prom]
+ *
+ * --verify runs the interpreter and the recompiler side by side with the same random seed and
+ * stops at the first frame where their machine states differ. The interpreter runs every instruction,
+ * the recompiler skips idle loops, so this checks both.
+ *
+ * --replay plays back an input movie recorded in the emulator with the recorded seed, speed and quirks,
+ * as fast as possible. Every frame is hashed ({@link SaveState#hash}); --hashes writes one hash per line
+ * and --check compares against such a file, failing at the first frame that differs.
+ *
+ * --lockstep runs N copies of the rom on {@link LockstepMachines} next to N interpreted machines, each copy
+ * with its own seed and random keypad input, and stops at the first frame where any copy differs.
+ *
+ * --audio renders the beeper of a --frames run into a wav file, one frame of samples per emulated frame.
+ *
+ * --no-idle-skip runs loops that only wait for the next frame or a key instruction by instruction instead
+ * of skipping to the end of the frame, see {@link Machine#setSkipIdleLoops}. Both give the same state.
+ *
+ * --variant picks the machine to run, by default it follows the rom extension ({@link Variant#forRom}).
+ * SUPER-CHIP and XO-CHIP always run on the interpreter, so --verify and --lockstep take CHIP-8 roms only.
+ * A movie replays on the variant it was recorded with.
+ *
+ * --metrics writes the {@link Metrics} of a --frames run in the Prometheus text format: instructions by
+ * opcode class, cycles, the frame time histogram and the instructions/s achieved.
+ */
+public class HeadlessRunner {
+
+    static final List<String> QUIRK_NAMES = List.of("shift", "memoryIncrementByX", "memoryLeaveIUnchanged", "jump", "wrap", "vfreset");
+    static final List<String> ENGINE_NAMES = List.of("interpreter", "recompiler");
+
+    public static void main(String[] args) {
+        if(args.length == 0){
+            printUsage();
+            System.exit(1);
+        }
+
+        String rom = args[0];
+        long cycles = -1;
+        long frames = 600;
+        int instructionsPerFrame = Machine.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        String quirks = "";
+        boolean dumpMemory = false;
+        String engine = "interpreter";
+        boolean verify = false;
+        String replay = null;
+        String hashesOut = null;
+        String hashesExpected = null;
+        int lockstep = 0;
+        String audio = null;
+        int sampleRate = Sound.DEFAULT_SAMPLE_RATE;
+        boolean skipIdleLoops = true;
+        Variant variant = Variant.forRom(rom);
+        String metricsOut = null;
+
+        try {
+            for(int i = 1; i < args.length; i++){
+                switch (args[i]) {
+                    case "--cycles" -> cycles = Long.parseLong(args[++i]);
+                    case "--frames" -> frames = Long.parseLong(args[++i]);
+                    case "--ipf" -> instructionsPerFrame = Integer.parseInt(args[++i]);
+                    case "--quirks" -> {
+                        quirks = args[++i];
+                        String unknown = unknownQuirk(quirks);
+                        if(unknown != null){
+                            System.out.println("Unknown quirk: " + unknown);
+                            printUsage();
+                            System.exit(1);
+                        }
+                    }
+                    case "--mem" -> dumpMemory = true;
+                    case "--engine" -> {
+                        engine = args[++i];
+                        if(!ENGINE_NAMES.contains(engine)){
+                            System.out.println("Unknown engine: " + engine);
+                            printUsage();
+                            System.exit(1);
+                        }
+                    }
+                    case "--verify" -> verify = true;
+                    case "--replay" -> replay = args[++i];
+                    case "--hashes" -> hashesOut = args[++i];
+                    case "--check" -> hashesExpected = args[++i];
+                    case "--lockstep" -> lockstep = Integer.parseInt(args[++i]);
+                    case "--audio" -> audio = args[++i];
+                    case "--sample-rate" -> sampleRate = Integer.parseInt(args[++i]);
+                    case "--no-idle-skip" -> skipIdleLoops = false;
+                    case "--variant" -> variant = Variant.of(args[++i]);
+                    case "--metrics" -> metricsOut = args[++i];
+                    default -> {
+                        System.out.println("Unknown option: " + args[i]);
+                        printUsage();
+                        System.exit(1);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if((audio != null || metricsOut != null) && cycles >= 0){
+            System.out.println("--audio and --metrics work on whole frames, use --frames");
+            System.exit(1);
+        }
+
+        if(!Files.isRegularFile(Paths.get(rom))){
+            System.out.println("Game File Not Found: " + rom);
+            System.exit(1);
+        }
+
+        if((verify || lockstep > 0) && variant != Variant.CHIP8){
+            System.out.println("--verify and --lockstep only run CHIP-8, not " + variant);
+            System.exit(1);
+        }
+
+        if(verify){
+            System.exit(verify(rom, frames, instructionsPerFrame, quirks) ? 0 : 2);
+        }
+
+        if(lockstep > 0){
+            System.exit(lockstep(rom, lockstep, frames, instructionsPerFrame, quirks) ? 0 : 2);
+        }
+
+        if(replay != null){
+            try {
+                System.exit(replay(rom, Paths.get(replay), createEngine(engine), hashesOut, hashesExpected) ? 0 : 2);
+            } catch (IOException e) {
+                System.out.println("Replay failed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        Machine machine = new Machine(new Chip8(), instructionsPerFrame);
+        machine.getChip8().setVariant(variant);
+        machine.setEngine(createEngine(engine));
+        machine.setSkipIdleLoops(skipIdleLoops);
+        applyQuirks(machine.getChip8(), quirks);
+        machine.load(rom);
+
+        Beeper beeper = null;
+        if(audio != null){
+            try {
+                beeper = new Beeper(new WavAudioSink(Paths.get(audio), sampleRate), 50);
+            } catch (IOException e) {
+                System.out.println("IOException caught when opening audio file! " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        Metrics metrics = metricsOut != null ? new Metrics() : null;
+
+        long start = System.nanoTime();
+        if(cycles >= 0){
+            machine.runCycles(cycles);
+        }
+        else if(beeper != null || metrics != null){
+            try {
+                for(long frame = 0; frame < frames && runFrame(machine, metrics); frame++){
+                    if(beeper != null){
+                        beeper.frame(machine.getChip8().beep, machine.getChip8().audioPattern);
+                    }
+                }
+                if(beeper != null){
+                    beeper.close();
+                }
+            } catch (UncheckedIOException e) {
+                System.out.println("IOException caught when writing audio file! " + e.getCause().getMessage());
+                System.exit(1);
+            }
+        }
+        else{
+            machine.runFrames(frames);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Chip8 chip8 = machine.getChip8();
+        chip8.printDisplay();
+        chip8.printRegisters();
+        if(dumpMemory){
+            chip8.printMem();
+        }
+
+        // skipped cycles were never executed, they don't count towards the speed
+        double seconds = elapsed / 1e9;
+        long executed = machine.getCycles() - machine.getSkippedCycles();
+        System.out.printf("Executed %d cycles (%d frames) in %.3f ms, %.0f instructions/s%s%n",
+                machine.getCycles(), machine.getFrames(), seconds * 1000,
+                seconds > 0 ? executed / seconds : 0,
+                machine.isHalted() ? ", halted" : "");
+        if(machine.getSkippedCycles() > 0){
+            System.out.printf("Skipped %d idle cycles (%.1f%%)%n", machine.getSkippedCycles(),
+                    100.0 * machine.getSkippedCycles() / machine.getCycles());
+        }
+
+        if(metrics != null){
+            // as fast as possible, there is no target speed
+            metrics.setSpeed(seconds > 0 ? machine.getCycles() / seconds : 0, 0);
+            try {
+                metrics.write(Paths.get(metricsOut));
+            } catch (IOException e) {
+                System.out.println("IOException caught when writing metrics! " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    // Runs one frame, recorded in metrics when not null. Returns false once the rom has halted
+    static boolean runFrame(Machine machine, Metrics metrics){
+        if(metrics == null){
+            return machine.runFrames(1) == 1;
+        }
+        Chip8 chip8 = machine.getChip8();
+        long start = System.nanoTime();
+        long cycles = machine.getCycles();
+        long skipped = machine.getSkippedCycles();
+        long invalid = chip8.invalidOpcodes;
+        boolean ran = machine.runFrames(1) == 1;
+        metrics.recordFrame(chip8, machine.getCycles() - cycles, machine.getSkippedCycles() - skipped,
+                chip8.invalidOpcodes - invalid, System.nanoTime() - start);
+        return ran;
+    }
+
+    static ExecutionEngine createEngine(String name){
+        switch (name) {
+            case "interpreter":
+                return ExecutionEngine.INTERPRETER;
+            case "recompiler":
+                return new Recompiler();
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+
+    // Runs the rom on both engines frame by frame, returns false at the first difference
+    static boolean verify(String rom, long frames, int instructionsPerFrame, String quirks){
+        long seed = System.nanoTime();
+        Machine interpreted = new Machine(new Chip8(), instructionsPerFrame);
+        Machine recompiled = new Machine(new Chip8(), instructionsPerFrame);
+        interpreted.setSkipIdleLoops(false); // the reference runs every instruction
+        Recompiler recompiler = new Recompiler();
+        recompiled.setEngine(recompiler);
+
+        for(Machine machine : List.of(interpreted, recompiled)){
+            machine.getChip8().seedRandom(seed);
+            applyQuirks(machine.getChip8(), quirks);
+            machine.load(rom);
+        }
+
+        for(long frame = 0; frame < frames; frame++){
+            interpreted.runFrames(1);
+            recompiled.runFrames(1);
+
+            String difference = firstDifference(interpreted.getChip8(), recompiled.getChip8());
+            if(difference != null){
+                System.out.printf("Engines differ after frame %d: %s%n", frame, difference);
+                interpreted.getChip8().printRegisters();
+                recompiled.getChip8().printRegisters();
+                return false;
+            }
+            if(interpreted.isHalted()) break;
+        }
+
+        System.out.printf("Engines identical for %d frames (%d cycles), %d blocks compiled, %d invalidated%n",
+                interpreted.getFrames(), interpreted.getCycles(), recompiler.getCompiledBlocks(), recompiler.getInvalidatedBlocks());
+        return true;
+    }
+
+    // Runs copies of the rom in lockstep and on the interpreter frame by frame, returns false at the first difference
+    static boolean lockstep(String rom, int machines, long frames, int instructionsPerFrame, String quirks){
+        long seed = System.nanoTime();
+        Machine[] interpreted = new Machine[machines];
+        boolean[] threw = new boolean[machines];
+        for(int m = 0; m < machines; m++){
+            Machine machine = new Machine(new Chip8(), instructionsPerFrame);
+            machine.getChip8().logInvalidOpcodes = false;
+            applyQuirks(machine.getChip8(), quirks);
+            machine.load(rom);
+            machine.getChip8().seedRandom(seed + m);
+            interpreted[m] = machine;
+        }
+
+        LockstepMachines lockstep = new LockstepMachines(machines, interpreted[0].getChip8().quirkProfile, instructionsPerFrame);
+        for(int m = 0; m < machines; m++){
+            lockstep.copyFrom(m, interpreted[m].getChip8());
+        }
+
+        Random input = new Random(seed);
+        int[] keys = new int[machines];
+        Chip8 copy = new Chip8();
+        ByteBuffer expected = ByteBuffer.allocate(SaveState.SIZE);
+        ByteBuffer actual = ByteBuffer.allocate(SaveState.SIZE);
+        long interpretedNanos = 0;
+        long lockstepNanos = 0;
+
+        for(long frame = 0; frame < frames && lockstep.getActive() > 0; frame++){
+            for(int m = 0; m < machines; m++){
+                if(input.nextInt(16) == 0){
+                    keys[m] = input.nextBoolean() ? 1 << input.nextInt(16) : 0;
+                }
+            }
+
+            long start = System.nanoTime();
+            for(int m = 0; m < machines; m++){
+                if(threw[m]) continue;
+                interpreted[m].getChip8().setKeys(keys[m]);
+                try {
+                    interpreted[m].runFrames(1);
+                } catch (RuntimeException e) {
+                    threw[m] = true;
+                }
+            }
+            long middle = System.nanoTime();
+            for(int m = 0; m < machines; m++){
+                lockstep.setKeys(m, keys[m]);
+            }
+            lockstep.runFrames(1);
+            long end = System.nanoTime();
+            interpretedNanos += middle - start;
+            lockstepNanos += end - middle;
+
+            for(int m = 0; m < machines; m++){
+                Chip8 chip8 = interpreted[m].getChip8();
+                if(threw[m] || lockstep.isFaulted(m)){
+                    if(threw[m] != lockstep.isFaulted(m)){
+                        System.out.printf("Machine %d %s after frame %d%n", m,
+                                threw[m] ? "threw but did not fault" : "faulted but did not throw", frame);
+                        return false;
+                    }
+                    continue;
+                }
+
+                lockstep.copyTo(m, copy);
+                copy.drawFlag = chip8.drawFlag; // not tracked in lockstep
+                if(SaveState.hash(chip8, expected) != SaveState.hash(copy, actual) || chip8.invalidOpcodes != copy.invalidOpcodes){
+                    String difference = firstDifference(chip8, copy);
+                    System.out.printf("Machine %d differs after frame %d: %s%n", m, frame,
+                            difference != null ? difference : "random state, beep or invalid opcode count");
+                    chip8.printRegisters();
+                    copy.printRegisters();
+                    return false;
+                }
+            }
+        }
+
+        long steps = lockstep.getCycles() * machines;
+        System.out.printf("%d machines identical for %d frames (%d cycles), %d uniform and %d divergent steps%s%n",
+                machines, lockstep.getFrames(), lockstep.getCycles(), lockstep.getUniformSteps(), lockstep.getDivergentSteps(),
+                LockstepMachines.VECTORIZED ? ", vectorized" : "");
+        System.out.printf("Interpreted %.0f machine-steps/s, lockstep %.0f machine-steps/s%n",
+                interpretedNanos > 0 ? steps * 1e9 / interpretedNanos : 0, lockstepNanos > 0 ? steps * 1e9 / lockstepNanos : 0);
+        return true;
+    }
+
+    // Plays a movie back, returns false if the hashes differ from the expected ones
+    static boolean replay(String rom, Path moviePath, ExecutionEngine engine, String hashesOut, String hashesExpected) throws IOException {
+        InputMovie movie = InputMovie.read(moviePath);
+        List<String> expected = hashesExpected != null ? Files.readAllLines(Paths.get(hashesExpected)) : null;
+
+        Machine machine = new Machine();
+        machine.setEngine(engine);
+        movie.applySettings(machine);
+        machine.load(rom);
+        Chip8 chip8 = machine.getChip8();
+        movie.prepareRandom(chip8);
+
+        if(InputMovie.programChecksum(chip8) != movie.programChecksum){
+            System.out.println("Warning: rom does not match the one the movie was recorded with");
+        }
+
+        PrintWriter hashes = hashesOut != null ? new PrintWriter(Files.newBufferedWriter(Paths.get(hashesOut))) : null;
+        ByteBuffer scratch = ByteBuffer.allocate(SaveState.MAX_SIZE);
+        int ipf = machine.getInstructionsPerFrame();
+        int event = 0;
+        int hash = SaveState.hash(chip8, scratch);
+        boolean matched = true;
+
+        long start = System.nanoTime();
+        for(long frame = 0; frame < movie.getFrames() && !machine.isHalted(); frame++){
+            // key changes land on the exact cycle they were recorded at
+            long frameEnd = machine.getCycles() + ipf;
+            while(event < movie.getEventCount() && movie.getEventCycle(event) < frameEnd){
+                machine.runCycles(movie.getEventCycle(event) - machine.getCycles());
+                chip8.setKeys(movie.getEventKeys(event++));
+            }
+            machine.runCycles(frameEnd - machine.getCycles());
+
+            hash = SaveState.hash(chip8, scratch);
+            String hex = String.format("%08x", hash);
+            if(hashes != null){
+                hashes.println(hex);
+            }
+            if(expected != null && (frame >= expected.size() || !expected.get((int) frame).equals(hex))){
+                System.out.printf("Replay differs at frame %d: expected %s, got %s%n", frame,
+                        frame < expected.size() ? expected.get((int) frame) : "end of file", hex);
+                matched = false;
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if(hashes != null){
+            hashes.close();
+        }
+
+        chip8.printDisplay();
+        System.out.printf("Replayed %d of %d frames (%d cycles) in %.3f ms, final state hash %08x%s%n",
+                machine.getFrames(), movie.getFrames(), machine.getCycles(), elapsed / 1e6, hash,
+                machine.isHalted() ? ", halted" : "");
+        return matched;
+    }
+
+    static String firstDifference(Chip8 a, Chip8 b){
+        if(a.pc != b.pc) return "pc";
+        if(a.I != b.I) return "I";
+        if(a.sp != b.sp) return "sp";
+        if(a.opcode != b.opcode) return "opcode";
+        if(a.delay_timer != b.delay_timer) return "delay_timer";
+        if(a.sound_timer != b.sound_timer) return "sound_timer";
+        if(a.emulate != b.emulate) return "emulate";
+        if(a.keyWaitRegister != b.keyWaitRegister || a.keyWaitKey != b.keyWaitKey) return "FX0A wait";
+        if(a.drawFlag != b.drawFlag) return "drawFlag";
+        if(!Arrays.equals(a.V, b.V)) return "V";
+        if(!Arrays.equals(a.stack, b.stack)) return "stack";
+        if(!Arrays.equals(a.memory, b.memory)) return "memory";
+        if(!Arrays.equals(a.display, b.display)) return "display";
+        if(a.variant != b.variant) return "variant";
+        if(!Arrays.equals(a.display2, b.display2)) return "display2";
+        if(a.hires != b.hires || a.planes != b.planes) return "display mode";
+        if(!Arrays.equals(a.flags, b.flags)) return "flags";
+        if(!Objects.equals(a.audioPattern, b.audioPattern) || a.pitch != b.pitch) return "audio";
+        return null;
+    }
+
+    // First name in a --quirks list that isn't one of QUIRK_NAMES, null when all are known
+    static String unknownQuirk(String quirks){
+        for(String quirk : quirks.split(",")){
+            if(!quirk.isBlank() && !QUIRK_NAMES.contains(quirk)) return quirk;
+        }
+        return null;
+    }
+
+    static void applyQuirks(Chip8 chip8, String quirks){
+        for(String quirk : quirks.split(",")){
+            if(quirk.isBlank()) continue;
+            chip8.setQuirk(quirk, true);
+        }
+    }
+
+    static void printUsage(){
+        System.out.println("Usage: HeadlessRunner <rom> [--cycles N | --frames N] [--ipf N] [--quirks " + String.join(",", QUIRK_NAMES) + "] [--mem]"
+                + " [--engine " + String.join("|", ENGINE_NAMES) + "] [--verify] [--replay movie.c8mv [--hashes out.txt] [--check expected.txt]] [--lockstep N]"
+                + " [--audio out.wav [--sample-rate N]] [--no-idle-skip] [--variant chip8|schip|xochip] [--metrics out.prom]");
+    }
+}
@@ -0,0 +1,88 @@
+package naren.ragu.chip8emujavafx;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations counted into fixed buckets, written out like a Prometheus histogram.
+ *
+ * One thread records and any thread can read. A record is a bucket search and three adds published with
+ * release stores, with no locking or CAS, so it can stay on in the emulation and render loops.
+ */
+public final class Histogram {
+
+    // Upper bucket bounds in nanoseconds, a 60 Hz frame is due every 16.7 ms
+    static final long[] TIME_BOUNDS = {
+            100_000L, 250_000L, 500_000L, 1_000_000L, 2_000_000L, 4_000_000L, 8_000_000L,
+            FramePacer.FRAME_NANOS, 2 * FramePacer.FRAME_NANOS, 100_000_000L
+    };
+
+    private final long[] bounds; // ascending, one more bucket above the last catches the rest
+    private final AtomicLongArray counts;
+    private volatile long count;
+    private volatile long sumNanos;
+
+    public Histogram(long[] bounds){
+        this.bounds = bounds.clone();
+        counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    // Only called by the thread that owns this histogram
+    void record(long nanos){
+        int bucket = 0;
+        while(bucket < bounds.length && nanos > bounds[bucket]){
+            bucket++;
+        }
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        sumNanos += nanos;
+        count++;
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    public double getMeanMillis(){
+        long count = this.count;
+        return count > 0 ? sumNanos / 1e6 / count : 0;
+    }
+
+    // Upper bound of the bucket holding quantile q, in milliseconds. Infinity when it is above the last bound
+    public double quantileMillis(double q){
+        long total = 0;
+        for(int i = 0; i < counts.length(); i++){
+            total += counts.get(i);
+        }
+        if(total == 0){
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for(int i = 0; i < bounds.length; i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return bounds[i] / 1e6;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    // Cumulative buckets in seconds, with _sum and _count
+    void writePrometheus(StringBuilder out, String name, String help){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for(int i = 0; i < bounds.length; i++){
+            cumulative += counts.get(i);
+            String seconds = BigDecimal.valueOf(bounds[i]).movePointLeft(9).stripTrailingZeros().toPlainString();
+            out.append(name).append("_bucket{le=\"").append(seconds)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(bounds.length);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.6f", sumNanos / 1e9)).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,180 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Keypad input recorded from a reset, enough to reproduce a run exactly.
+ *
+ * A movie holds the variant, random seed, instructions per frame and quirk profile the run started with,
+ * a checksum of the program area so a replay can tell it has the right rom, the number of frames
+ * recorded and every change of the keypad mask together with the cycle it took effect at.
+ *
+ * File layout, big endian: magic "C8MV" (4), version (2), variant (2), seed (8), instructions per
+ * frame (4), quirk bits (4), program checksum (4), frames (8), event count (4), then per event
+ * cycle (8) and key mask (4).
+ */
+public class InputMovie {
+
+    public static final int MAGIC = 0x43384D56; // "C8MV"
+    public static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 4 + 4 + 4 + 8 + 4;
+    static final int EVENT_SIZE = 8 + 4;
+
+    final Variant variant;
+    final long seed;
+    final int instructionsPerFrame;
+    final QuirkProfile quirkProfile;
+    final int programChecksum;
+
+    private long frames;
+
+    private long[] eventCycles = new long[256];
+    private int[] eventKeys = new int[256];
+    private int events;
+    private int lastKeys;
+
+    public InputMovie(Variant variant, long seed, int instructionsPerFrame, QuirkProfile quirkProfile, int programChecksum){
+        this.variant = variant;
+        this.seed = seed;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.quirkProfile = quirkProfile;
+        this.programChecksum = programChecksum;
+    }
+
+    // Start a recording of a machine that was just reset and loaded, seeding its random generator
+    public static InputMovie start(Machine machine, long seed){
+        Chip8 chip8 = machine.getChip8();
+        chip8.seedRandom(seed);
+        return new InputMovie(chip8.variant, seed, machine.getInstructionsPerFrame(), chip8.quirkProfile, programChecksum(chip8));
+    }
+
+    // CRC32 of the program area, 0x200 to the end of memory
+    public static int programChecksum(Chip8 chip8){
+        CRC32 crc = new CRC32();
+        for(int address = 0x200; address < chip8.memory.length; address++){
+            crc.update(chip8.memory[address]);
+        }
+        return (int) crc.getValue();
+    }
+
+    public long getFrames(){
+        return frames;
+    }
+
+    public int getEventCount(){
+        return events;
+    }
+
+    public long getEventCycle(int event){
+        return eventCycles[event];
+    }
+
+    public int getEventKeys(int event){
+        return eventKeys[event];
+    }
+
+    // Note the keypad mask applied at the given cycle, only changes are stored
+    public void record(long cycle, int keys){
+        if(keys == lastKeys){
+            return;
+        }
+        if(events == eventCycles.length){
+            eventCycles = Arrays.copyOf(eventCycles, events * 2);
+            eventKeys = Arrays.copyOf(eventKeys, events * 2);
+        }
+        eventCycles[events] = cycle;
+        eventKeys[events] = keys;
+        events++;
+        lastKeys = keys;
+    }
+
+    public void endFrame(){
+        frames++;
+    }
+
+    // Configure a machine like the recorded one. Call before Machine.load, then seed with prepareRandom()
+    public void applySettings(Machine machine){
+        Chip8 chip8 = machine.getChip8();
+        chip8.setVariant(variant);
+        machine.setInstructionsPerFrame(instructionsPerFrame);
+        chip8.setQuirk("shift", quirkProfile.shift);
+        chip8.setQuirk("memoryIncrementByX", quirkProfile.memoryIncrementByX);
+        chip8.setQuirk("memoryLeaveIUnchanged", quirkProfile.memoryLeaveIUnchanged);
+        chip8.setQuirk("jump", quirkProfile.jump);
+        chip8.setQuirk("wrap", quirkProfile.wrap);
+        chip8.setQuirk("vfreset", quirkProfile.vfreset);
+    }
+
+    public void prepareRandom(Chip8 chip8){
+        chip8.seedRandom(seed);
+    }
+
+    public void write(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + events * EVENT_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) variant.ordinal());
+        buffer.putLong(seed);
+        buffer.putInt(instructionsPerFrame);
+        buffer.putInt(quirkProfile.toBits());
+        buffer.putInt(programChecksum);
+        buffer.putLong(frames);
+        buffer.putInt(events);
+        for(int i = 0; i < events; i++){
+            buffer.putLong(eventCycles[i]);
+            buffer.putInt(eventKeys[i]);
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public static InputMovie read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < HEADER_SIZE || size > Integer.MAX_VALUE){
+                throw new IOException("Not a Chip8 input movie");
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+            buffer.flip();
+        }
+
+        if(buffer.getInt() != MAGIC){
+            throw new IOException("Not a Chip8 input movie");
+        }
+        short version = buffer.getShort();
+        if(version != VERSION){
+            throw new IOException("Unsupported input movie version: " + version);
+        }
+        int variant = buffer.getShort();
+        if(variant < 0 || variant >= Variant.values().length){
+            throw new IOException("Unsupported input movie variant: " + variant);
+        }
+
+        InputMovie movie = new InputMovie(Variant.values()[variant], buffer.getLong(), buffer.getInt(),
+                QuirkProfile.fromBits(buffer.getInt()), buffer.getInt());
+        movie.frames = buffer.getLong();
+        int count = buffer.getInt();
+        if(count < 0 || buffer.remaining() < (long) count * EVENT_SIZE){
+            throw new IOException("Truncated input movie");
+        }
+        for(int i = 0; i < count; i++){
+            movie.record(buffer.getLong(), buffer.getInt());
+        }
+        return movie;
+    }
+}
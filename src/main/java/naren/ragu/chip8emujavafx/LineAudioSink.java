@@ -0,0 +1,70 @@
+package naren.ragu.chip8emujavafx;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays samples on the default output device. The buffer size sets the output latency: the line holds
+ * at most that many samples ahead of the speaker.
+ */
+public class LineAudioSink implements AudioSink {
+
+    private final SourceDataLine line;
+    private final float sampleRate;
+
+    public LineAudioSink(float sampleRate, int bufferSamples) throws LineUnavailableException {
+        this.sampleRate = sampleRate;
+        AudioFormat format = new AudioFormat(sampleRate, 8, 1, true, true);
+        try {
+            line = AudioSystem.getSourceDataLine(format);
+        } catch (IllegalArgumentException e) {
+            throw new LineUnavailableException(e.getMessage());
+        }
+        line.open(format, bufferSamples);
+    }
+
+    @Override
+    public float getSampleRate(){
+        return sampleRate;
+    }
+
+    // The size the line actually got, which may differ from the one asked for
+    public int getBufferSize(){
+        return line.getBufferSize();
+    }
+
+    @Override
+    public void write(byte[] samples, int offset, int length){
+        line.write(samples, offset, length);
+    }
+
+    @Override
+    public boolean isRealtime(){
+        return true;
+    }
+
+    @Override
+    public int getQueued(){
+        return line.getBufferSize() - line.available();
+    }
+
+    @Override
+    public void start(){
+        line.start();
+    }
+
+    @Override
+    public void stop(){
+        line.drain();
+        line.stop();
+    }
+
+    @Override
+    public void close(){
+        line.stop();
+        line.flush();
+        line.close();
+    }
+}
@@ -0,0 +1,737 @@
+package naren.ragu.chip8emujavafx;
+
+import java.util.Arrays;
+
+/**
+ * Many Chip8 machines stepped in lockstep, stored as a struct of arrays instead of one {@link Chip8} each.
+ *
+ * Registers, pc, I, sp and timers are kept in primitive lanes with one lane per machine, register
+ * r of every machine is contiguous (v[r * count + m]). Memory, stack and display are per machine blocks.
+ * Each step fetches the next opcode of every machine, or only once while every machine is at the same
+ * pc and none has written to memory since it was loaded. When all machines are running and fetched
+ * the same opcode, register, skip, jump and timer instructions run over all lanes at once, with the
+ * Vector API (see {@link LockstepVectors}) when jdk.incubator.vector is available. Everything else,
+ * and every step where the machines diverge, runs machine by machine.
+ *
+ * Machines end up exactly where {@link Machine} with the interpreter would, with all machines sharing
+ * one quirk profile and instructions per frame. Only {@link Variant#CHIP8} machines can be run. Where the interpreter would throw (stack over or
+ * underflow, pc or I outside memory) the machine is marked faulted and stops instead, its state at
+ * that point is not defined.
+ */
+public class LockstepMachines {
+
+    static final int MEMORY_SIZE = 4096;
+    // machines fetch from the same address, a power of two stride would put all of them in one cache set
+    static final int MEMORY_STRIDE = MEMORY_SIZE + 64;
+    static final int REGISTERS = 16;
+    static final int STACK_SIZE = 16;
+    static final int ROWS = 32;
+
+    // the Vector API is an incubator module, it is only used when added with --add-modules jdk.incubator.vector
+    static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !Boolean.getBoolean("chip8.lockstep.scalar");
+
+    final int count;
+    final QuirkProfile quirkProfile;
+    final int instructionsPerFrame;
+
+    // one lane per machine
+    final int[] v;        // register r of machine m at r * count + m
+    final int[] pc;
+    final int[] index;    // I
+    final int[] sp;
+    final int[] delay;
+    final int[] sound;
+    final int[] opcode;
+    final int[] keys;
+    final int[] keyWaitRegister; // FX0A, same as in Chip8
+    final int[] keyWaitKey;
+    final long[] randomState;
+    final long[] invalidOpcodes;
+    final boolean[] beep;
+    final boolean[] running;
+    final boolean[] faulted;
+
+    // one block per machine
+    final byte[] memory;  // machine m at m * MEMORY_STRIDE
+    final int[] stack;    // machine m at m * STACK_SIZE
+    final long[] display; // machine m at m * ROWS
+
+    // memory image of the first machine loaded, machines still holding it can share one fetch
+    private final byte[] sharedMemory = new byte[MEMORY_SIZE];
+    private boolean sharedMemoryLoaded;
+    private final boolean[] privateMemory;
+    private int privateMachines;
+
+    private int active;
+    private int waiting; // running machines stopped on FX0A
+    private int frameCycle;
+    private long cycles;
+    private long frames;
+
+    private long uniformSteps;
+    private long divergentSteps;
+
+    public LockstepMachines(int count, QuirkProfile quirkProfile, int instructionsPerFrame){
+        this.count = count;
+        this.quirkProfile = quirkProfile;
+        this.instructionsPerFrame = instructionsPerFrame;
+
+        v = new int[REGISTERS * count];
+        pc = new int[count];
+        index = new int[count];
+        sp = new int[count];
+        delay = new int[count];
+        sound = new int[count];
+        opcode = new int[count];
+        keys = new int[count];
+        keyWaitRegister = new int[count];
+        keyWaitKey = new int[count];
+        Arrays.fill(keyWaitRegister, -1);
+        Arrays.fill(keyWaitKey, -1);
+        randomState = new long[count];
+        invalidOpcodes = new long[count];
+        beep = new boolean[count];
+        running = new boolean[count];
+        faulted = new boolean[count];
+        privateMemory = new boolean[count];
+
+        memory = new byte[MEMORY_STRIDE * count];
+        stack = new int[STACK_SIZE * count];
+        display = new long[ROWS * count];
+    }
+
+    public int getCount(){
+        return count;
+    }
+
+    public long getCycles(){
+        return cycles;
+    }
+
+    public long getFrames(){
+        return frames;
+    }
+
+    // Machines that have neither halted nor faulted
+    public int getActive(){
+        return active;
+    }
+
+    public boolean isHalted(int machine){
+        return !running[machine];
+    }
+
+    public boolean isFaulted(int machine){
+        return faulted[machine];
+    }
+
+    // Steps where every machine ran the same instruction together
+    public long getUniformSteps(){
+        return uniformSteps;
+    }
+
+    // Steps where the machines were run one by one
+    public long getDivergentSteps(){
+        return divergentSteps;
+    }
+
+    // Same as Chip8.setKeys(), including finishing FX0A
+    public void setKeys(int machine, int keys){
+        int m = machine;
+        int pressed = keys & ~this.keys[m];
+        this.keys[m] = keys;
+        if(keyWaitRegister[m] < 0) return;
+
+        if(keyWaitKey[m] < 0 && pressed != 0){
+            keyWaitKey[m] = Integer.numberOfTrailingZeros(pressed);
+        }
+        if(keyWaitKey[m] >= 0 && (keys >> keyWaitKey[m] & 1) == 0){
+            v[keyWaitRegister[m] * count + m] = keyWaitKey[m];
+            keyWaitKey[m] = -1;
+            setKeyWait(m, -1);
+        }
+    }
+
+    // Load machine from a Chip8 state, between frames. The quirk profile of source is ignored
+    public void copyFrom(int machine, Chip8 source){
+        if(source.variant != Variant.CHIP8){
+            throw new IllegalArgumentException("Lockstep machines only run CHIP-8, not " + source.variant);
+        }
+        int m = machine;
+        pc[m] = source.pc;
+        index[m] = source.I;
+        sp[m] = source.sp;
+        delay[m] = source.delay_timer;
+        sound[m] = source.sound_timer;
+        opcode[m] = source.opcode;
+        keys[m] = source.keys;
+        keyWaitKey[m] = source.keyWaitKey;
+        setKeyWait(m, source.keyWaitRegister);
+        randomState[m] = source.randomState;
+        invalidOpcodes[m] = source.invalidOpcodes;
+        beep[m] = source.beep;
+        faulted[m] = false;
+        setRunning(m, source.emulate);
+
+        for(int r = 0; r < REGISTERS; r++){
+            v[r * count + m] = source.V[r];
+        }
+        for(int i = 0; i < STACK_SIZE; i++){
+            stack[m * STACK_SIZE + i] = source.stack[i];
+        }
+        boolean shared = true;
+        for(int address = 0; address < MEMORY_SIZE; address++){
+            byte value = (byte) source.memory[address];
+            memory[m * MEMORY_STRIDE + address] = value;
+            if(!sharedMemoryLoaded){
+                sharedMemory[address] = value;
+            }
+            shared &= sharedMemory[address] == value;
+        }
+        sharedMemoryLoaded = true;
+        setPrivateMemory(m, !shared);
+        System.arraycopy(source.display, 0, display, m * ROWS, ROWS);
+    }
+
+    // Write the state of machine into a Chip8, for saving or comparing it
+    public void copyTo(int machine, Chip8 target){
+        target.setVariant(Variant.CHIP8);
+        int m = machine;
+        target.pc = (char) pc[m];
+        target.I = (char) index[m];
+        target.sp = (char) sp[m];
+        target.delay_timer = (char) delay[m];
+        target.sound_timer = (char) sound[m];
+        target.opcode = (char) opcode[m];
+        target.keys = keys[m];
+        target.keyWaitRegister = keyWaitRegister[m];
+        target.keyWaitKey = keyWaitKey[m];
+        target.randomState = randomState[m];
+        target.invalidOpcodes = invalidOpcodes[m];
+        target.beep = beep[m];
+        target.emulate = running[m];
+        target.setQuirkProfile(quirkProfile);
+        target.nextQuirkProfile = quirkProfile;
+
+        for(int r = 0; r < REGISTERS; r++){
+            target.V[r] = (char) v[r * count + m];
+        }
+        for(int i = 0; i < STACK_SIZE; i++){
+            target.stack[i] = (char) stack[m * STACK_SIZE + i];
+        }
+        for(int address = 0; address < MEMORY_SIZE; address++){
+            target.memory[address] = (char) (memory[m * MEMORY_STRIDE + address] & 0xFF);
+        }
+        System.arraycopy(display, m * ROWS, target.display, 0, ROWS);
+
+        target.memoryWritten(0, MEMORY_SIZE);
+        target.dirtyRows = Chip8.ALL_ROWS;
+        target.drawFlag = true;
+    }
+
+    // Run every machine for count cycles or until all of them stopped, returns the number of steps run
+    public long runCycles(long count){
+        long start = cycles;
+        for(long i = 0; i < count && active > 0; i++){
+            if(frameCycle == 0){
+                updateTimers();
+            }
+            step();
+            cycles++;
+            if(++frameCycle == instructionsPerFrame){
+                frameCycle = 0;
+                frames++;
+            }
+        }
+        return cycles - start;
+    }
+
+    // Run up to count whole frames, stopping early once every machine stopped
+    public long runFrames(long count){
+        long start = frames;
+        long target = frames + count;
+        while(frames < target && active > 0){
+            runCycles(instructionsPerFrame - frameCycle);
+        }
+        return frames - start;
+    }
+
+    private void setRunning(int m, boolean run){
+        if(running[m] != run){
+            active += run ? 1 : -1;
+        }
+        running[m] = run;
+    }
+
+    private void setKeyWait(int m, int register){
+        if((keyWaitRegister[m] >= 0) != (register >= 0)){
+            waiting += register >= 0 ? 1 : -1;
+        }
+        keyWaitRegister[m] = register;
+    }
+
+    private void setPrivateMemory(int m, boolean written){
+        if(privateMemory[m] != written){
+            privateMachines += written ? 1 : -1;
+        }
+        privateMemory[m] = written;
+    }
+
+    private void fault(int m){
+        faulted[m] = true;
+        setRunning(m, false);
+    }
+
+    // Frame boundary, same as Chip8.updateTimers() for every running machine
+    void updateTimers(){
+        for(int m = 0; m < count; m++){
+            if(!running[m]) continue;
+            if(delay[m] > 0){
+                delay[m]--;
+            }
+            if(sound[m] > 0){
+                beep[m] = true;
+                sound[m]--;
+            }
+            else{
+                beep[m] = false;
+            }
+        }
+    }
+
+    void step(){
+        // identical machines at the same pc fetch once
+        int shared = pc[0];
+        if(privateMachines == 0 && active == count && waiting == 0 && shared <= MEMORY_SIZE - 2 && samePc(shared)){
+            int op = (sharedMemory[shared] & 0xFF) << 8 | sharedMemory[shared + 1] & 0xFF;
+            Arrays.fill(opcode, op);
+            Arrays.fill(pc, shared + 2);
+            if(executeUniform(op)){
+                uniformSteps++;
+                return;
+            }
+            divergentSteps++;
+            for(int m = 0; m < count; m++){
+                execute(m, op);
+            }
+            return;
+        }
+
+        // fetch, noting whether every machine is running the same instruction. Machines waiting on FX0A sit out
+        boolean uniform = active == count && waiting == 0;
+        int first = 0;
+        for(int m = 0; m < count; m++){
+            if(!running[m] || keyWaitRegister[m] >= 0) continue;
+            int address = pc[m];
+            if(address > MEMORY_SIZE - 2){
+                fault(m);
+                uniform = false;
+                continue;
+            }
+            int base = m * MEMORY_STRIDE + address;
+            int op = (memory[base] & 0xFF) << 8 | memory[base + 1] & 0xFF;
+            opcode[m] = op;
+            pc[m] = address + 2;
+
+            if(m == 0){
+                first = op;
+            }
+            else if(op != first){
+                uniform = false;
+            }
+        }
+
+        if(uniform && executeUniform(first)){
+            uniformSteps++;
+            return;
+        }
+
+        divergentSteps++;
+        for(int m = 0; m < count; m++){
+            if(running[m] && keyWaitRegister[m] < 0){
+                execute(m, opcode[m]);
+            }
+        }
+    }
+
+    private boolean samePc(int address){
+        for(int m = 1; m < count; m++){
+            if(pc[m] != address) return false;
+        }
+        return true;
+    }
+
+    // Run op on every lane at once, returns false for instructions that have to run machine by machine
+    private boolean executeUniform(int op){
+        int x = (op >>> 8) & 0xF;
+        int y = (op >>> 4) & 0xF;
+        int nn = op & 0xFF;
+        int nnn = op & 0xFFF;
+
+        switch (op >>> 12) {
+            case 0x1: // 1NNN
+                Arrays.fill(pc, nnn);
+                return true;
+            case 0x3: // 3XNN
+            case 0x4: // 4XNN
+                if(VECTORIZED) LockstepVectors.skipImmediate(this, op);
+                else skipImmediate(op, 0, count);
+                return true;
+            case 0x5: // 5XY0
+            case 0x9: // 9XY0
+                if(VECTORIZED) LockstepVectors.skipRegisters(this, op);
+                else skipRegisters(op, 0, count);
+                return true;
+            case 0x6: // 6XNN
+                Arrays.fill(v, x * count, (x + 1) * count, nn);
+                return true;
+            case 0x7: // 7XNN
+                if(VECTORIZED) LockstepVectors.addImmediate(this, x, nn);
+                else addImmediate(x, nn, 0, count);
+                return true;
+            case 0x8: // 8XYN
+                if((op & 0xF) == 0x0){
+                    System.arraycopy(v, y * count, v, x * count, count);
+                    return true;
+                }
+                if(VECTORIZED) return LockstepVectors.arithmetic(this, op);
+                return arithmetic(op, 0, count);
+            case 0xA: // ANNN
+                Arrays.fill(index, nnn);
+                return true;
+            case 0xF:
+                switch (nn) {
+                    case 0x07: // FX07
+                        System.arraycopy(delay, 0, v, x * count, count);
+                        return true;
+                    case 0x15: // FX15
+                        System.arraycopy(v, x * count, delay, 0, count);
+                        return true;
+                    case 0x18: // FX18
+                        System.arraycopy(v, x * count, sound, 0, count);
+                        return true;
+                    case 0x1E: // FX1E
+                        if(VECTORIZED) LockstepVectors.addIndex(this, x);
+                        else addIndex(x, 0, count);
+                        return true;
+                    case 0x29: // FX29
+                        if(VECTORIZED) LockstepVectors.font(this, x);
+                        else font(x, 0, count);
+                        return true;
+                    default:
+                        return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    // Run op on machine m alone, same as Chip8.emulateCycle()
+    private void execute(int m, int op){
+        int x = (op >>> 8) & 0xF;
+        int y = (op >>> 4) & 0xF;
+        int n = op & 0xF;
+        int nn = op & 0xFF;
+        int nnn = op & 0xFFF;
+        int vx = x * count + m;
+
+        switch (op >>> 12) {
+            case 0x0:
+                if(op == 0x00E0){
+                    Arrays.fill(display, m * ROWS, (m + 1) * ROWS, 0L);
+                }
+                else if(op == 0x00EE){
+                    if(sp[m] == 0){
+                        fault(m);
+                        return;
+                    }
+                    pc[m] = stack[m * STACK_SIZE + --sp[m]];
+                }
+                else if(op == 0x0000){
+                    setRunning(m, false);
+                }
+                else{
+                    invalidOpcodes[m]++;
+                }
+                break;
+            case 0x1:
+                pc[m] = nnn;
+                break;
+            case 0x2:
+                if(sp[m] == STACK_SIZE){
+                    fault(m);
+                    return;
+                }
+                stack[m * STACK_SIZE + sp[m]++] = pc[m];
+                pc[m] = nnn;
+                break;
+            case 0x3:
+            case 0x4:
+                skipImmediate(op, m, m + 1);
+                break;
+            case 0x5:
+            case 0x9:
+                skipRegisters(op, m, m + 1);
+                break;
+            case 0x6:
+                v[vx] = nn;
+                break;
+            case 0x7:
+                addImmediate(x, nn, m, m + 1);
+                break;
+            case 0x8:
+                if(n == 0x0){
+                    v[vx] = v[y * count + m];
+                }
+                else if(!arithmetic(op, m, m + 1)){
+                    invalidOpcodes[m]++;
+                }
+                break;
+            case 0xA:
+                index[m] = nnn;
+                break;
+            case 0xB:
+                pc[m] = (quirkProfile.jump ? v[vx] : v[m]) + nnn;
+                break;
+            case 0xC:
+                v[vx] = nextRandomByte(m) & nn;
+                break;
+            case 0xD:
+                draw(m, x, y, n);
+                break;
+            case 0xE:
+                if(nn == 0x9E){
+                    if((keys[m] >> (v[vx] & 0xF) & 1) != 0) pc[m] += 2;
+                }
+                else if(nn == 0xA1){
+                    if((keys[m] >> (v[vx] & 0xF) & 1) == 0) pc[m] += 2;
+                }
+                else{
+                    invalidOpcodes[m]++;
+                }
+                break;
+            default: // 0xF
+                executeMisc(m, x, nn, vx);
+                break;
+        }
+    }
+
+    private void executeMisc(int m, int x, int nn, int vx){
+        int address = index[m];
+        int base = m * MEMORY_STRIDE;
+
+        switch (nn) {
+            case 0x07:
+                v[vx] = delay[m];
+                break;
+            case 0x0A:
+                // finished by setKeys() once a key was pressed and released
+                keyWaitKey[m] = -1;
+                setKeyWait(m, x);
+                break;
+            case 0x15:
+                delay[m] = v[vx];
+                break;
+            case 0x18:
+                sound[m] = v[vx];
+                break;
+            case 0x1E:
+                addIndex(x, m, m + 1);
+                break;
+            case 0x29:
+                font(x, m, m + 1);
+                break;
+            case 0x33:
+                if(address + 2 >= MEMORY_SIZE){
+                    fault(m);
+                    return;
+                }
+                setPrivateMemory(m, true);
+                memory[base + address] = (byte) (v[vx] / 100);
+                memory[base + address + 1] = (byte) ((v[vx] % 100) / 10);
+                memory[base + address + 2] = (byte) (v[vx] % 10);
+                break;
+            case 0x55:
+                if(address + x >= MEMORY_SIZE){
+                    fault(m);
+                    return;
+                }
+                setPrivateMemory(m, true);
+                for(int r = 0; r <= x; r++){
+                    memory[base + address + r] = (byte) v[r * count + m];
+                }
+                index[m] = (address + quirkProfile.loadStoreIncrement(x)) & 0xFFFF;
+                break;
+            case 0x65:
+                if(address + x >= MEMORY_SIZE){
+                    fault(m);
+                    return;
+                }
+                for(int r = 0; r <= x; r++){
+                    v[r * count + m] = memory[base + address + r] & 0xFF;
+                }
+                index[m] = (address + quirkProfile.loadStoreIncrement(x)) & 0xFFFF;
+                break;
+            default:
+                invalidOpcodes[m]++;
+                break;
+        }
+    }
+
+    // DXYN, see Chip8.drawSprite()
+    private void draw(int m, int x, int y, int height){
+        int px = v[x * count + m];
+        int py = v[y * count + m];
+        int vf = 0xF * count + m;
+        int address = index[m];
+        int base = m * MEMORY_STRIDE;
+        int rows = m * ROWS;
+
+        v[vf] = 0;
+        if(quirkProfile.wrap){
+            for(int row = 0; row < height; row++){
+                if(address + row >= MEMORY_SIZE){
+                    fault(m);
+                    return;
+                }
+                int ny = (py + row) & 31;
+                long bits = Long.rotateRight((long) (memory[base + address + row] & 0xFF) << 56, px);
+                if((display[rows + ny] & bits) != 0) v[vf] = 1;
+                display[rows + ny] ^= bits;
+            }
+        }
+        else{
+            if(px >= 64) return;
+            for(int row = 0; row < height; row++){
+                int ny = py + row;
+                if(ny >= 32) break;
+                if(address + row >= MEMORY_SIZE){
+                    fault(m);
+                    return;
+                }
+                long bits = ((long) (memory[base + address + row] & 0xFF) << 56) >>> px;
+                if((display[rows + ny] & bits) != 0) v[vf] = 1;
+                display[rows + ny] ^= bits;
+            }
+        }
+    }
+
+    private int nextRandomByte(int m){
+        randomState[m] = (randomState[m] * Chip8.RANDOM_MULTIPLIER + 0xBL) & Chip8.RANDOM_MASK;
+        return (int) (randomState[m] >>> 40);
+    }
+
+    // Lane range operations, used for single machines and for the lanes LockstepVectors leaves over
+
+    // 3XNN and 4XNN
+    void skipImmediate(int op, int from, int to){
+        int rx = ((op >>> 8) & 0xF) * count;
+        int nn = op & 0xFF;
+        boolean equal = op >>> 12 == 0x3;
+        for(int m = from; m < to; m++){
+            if((v[rx + m] == nn) == equal) pc[m] += 2;
+        }
+    }
+
+    // 5XY0 and 9XY0
+    void skipRegisters(int op, int from, int to){
+        int rx = ((op >>> 8) & 0xF) * count;
+        int ry = ((op >>> 4) & 0xF) * count;
+        boolean equal = op >>> 12 == 0x5;
+        for(int m = from; m < to; m++){
+            if((v[rx + m] == v[ry + m]) == equal) pc[m] += 2;
+        }
+    }
+
+    // 7XNN
+    void addImmediate(int x, int nn, int from, int to){
+        int rx = x * count;
+        for(int m = from; m < to; m++){
+            v[rx + m] = (v[rx + m] + nn) & 0xFF;
+        }
+    }
+
+    // 8XY1 to 8XYE, returns false for an invalid N
+    boolean arithmetic(int op, int from, int to){
+        int rx = ((op >>> 8) & 0xF) * count;
+        int ry = ((op >>> 4) & 0xF) * count;
+        int rf = 0xF * count;
+
+        switch (op & 0xF) {
+            case 0x1:
+                for(int m = from; m < to; m++){
+                    v[rx + m] |= v[ry + m];
+                    if(quirkProfile.vfreset) v[rf + m] = 0;
+                }
+                return true;
+            case 0x2:
+                for(int m = from; m < to; m++){
+                    if(quirkProfile.vfreset) v[rf + m] = 0;
+                    v[rx + m] &= v[ry + m];
+                }
+                return true;
+            case 0x3:
+                for(int m = from; m < to; m++){
+                    if(quirkProfile.vfreset) v[rf + m] = 0;
+                    v[rx + m] ^= v[ry + m];
+                }
+                return true;
+            case 0x4:
+                for(int m = from; m < to; m++){
+                    int sum = v[rx + m] + v[ry + m];
+                    v[rx + m] = sum & 0xFF;
+                    v[rf + m] = sum >>> 8;
+                }
+                return true;
+            case 0x5:
+                for(int m = from; m < to; m++){
+                    int noBorrow = v[rx + m] >= v[ry + m] ? 1 : 0;
+                    v[rx + m] = (v[rx + m] - v[ry + m]) & 0xFF;
+                    v[rf + m] = noBorrow;
+                }
+                return true;
+            case 0x6:
+                int rightSource = quirkProfile.shift ? rx : ry;
+                for(int m = from; m < to; m++){
+                    int value = v[rightSource + m];
+                    v[rx + m] = value >>> 1;
+                    v[rf + m] = value & 0x1;
+                }
+                return true;
+            case 0x7:
+                for(int m = from; m < to; m++){
+                    int noBorrow = v[ry + m] >= v[rx + m] ? 1 : 0;
+                    v[rx + m] = (v[ry + m] - v[rx + m]) & 0xFF;
+                    v[rf + m] = noBorrow;
+                }
+                return true;
+            case 0xE:
+                int leftSource = quirkProfile.shift ? rx : ry;
+                for(int m = from; m < to; m++){
+                    int value = v[leftSource + m];
+                    v[rx + m] = (value << 1) & 0xFF;
+                    v[rf + m] = value >>> 7;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // FX1E
+    void addIndex(int x, int from, int to){
+        int rx = x * count;
+        for(int m = from; m < to; m++){
+            index[m] = (index[m] + v[rx + m]) & 0xFFFF;
+        }
+    }
+
+    // FX29
+    void font(int x, int from, int to){
+        int rx = x * count;
+        for(int m = from; m < to; m++){
+            index[m] = 5 * (v[rx + m] & 0xF) + 0x50;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package naren.ragu.chip8emujavafx;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the {@link LockstepMachines} lane operations, for steps where every machine
+ * runs the same instruction. Whole vectors of machines are processed at once and the lanes left over
+ * at the end go through the scalar operation.
+ *
+ * Only loaded when {@link LockstepMachines#VECTORIZED} is set, so the incubator module stays optional.
+ * Operators are always constants here, the JIT only turns them into vector instructions when they are.
+ */
+final class LockstepVectors {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private LockstepVectors(){
+    }
+
+    // 3XNN and 4XNN
+    static void skipImmediate(LockstepMachines lanes, int op){
+        int[] v = lanes.v;
+        int[] pc = lanes.pc;
+        int rx = ((op >>> 8) & 0xF) * lanes.count;
+        int nn = op & 0xFF;
+        boolean equal = op >>> 12 == 0x3;
+
+        int bound = SPECIES.loopBound(lanes.count);
+        for(int m = 0; m < bound; m += SPECIES.length()){
+            IntVector vx = IntVector.fromArray(SPECIES, v, rx + m);
+            VectorMask<Integer> skip = vx.compare(VectorOperators.EQ, nn);
+            if(!equal) skip = skip.not();
+            IntVector.fromArray(SPECIES, pc, m).add(2, skip).intoArray(pc, m);
+        }
+        lanes.skipImmediate(op, bound, lanes.count);
+    }
+
+    // 5XY0 and 9XY0
+    static void skipRegisters(LockstepMachines lanes, int op){
+        int[] v = lanes.v;
+        int[] pc = lanes.pc;
+        int rx = ((op >>> 8) & 0xF) * lanes.count;
+        int ry = ((op >>> 4) & 0xF) * lanes.count;
+        boolean equal = op >>> 12 == 0x5;
+
+        int bound = SPECIES.loopBound(lanes.count);
+        for(int m = 0; m < bound; m += SPECIES.length()){
+            IntVector vx = IntVector.fromArray(SPECIES, v, rx + m);
+            IntVector vy = IntVector.fromArray(SPECIES, v, ry + m);
+            VectorMask<Integer> skip = vx.compare(VectorOperators.EQ, vy);
+            if(!equal) skip = skip.not();
+            IntVector.fromArray(SPECIES, pc, m).add(2, skip).intoArray(pc, m);
+        }
+        lanes.skipRegisters(op, bound, lanes.count);
+    }
+
+    // 7XNN
+    static void addImmediate(LockstepMachines lanes, int x, int nn){
+        int[] v = lanes.v;
+        int rx = x * lanes.count;
+
+        int bound = SPECIES.loopBound(lanes.count);
+        for(int m = 0; m < bound; m += SPECIES.length()){
+            IntVector.fromArray(SPECIES, v, rx + m).add(nn).and(0xFF).intoArray(v, rx + m);
+        }
+        lanes.addImmediate(x, nn, bound, lanes.count);
+    }
+
+    // 8XY1 to 8XYE, returns false for an invalid N. Stores happen in the same order as in Chip8
+    static boolean arithmetic(LockstepMachines lanes, int op){
+        int n = op & 0xF;
+        if(n > 0x7 && n != 0xE){
+            return false;
+        }
+
+        int[] v = lanes.v;
+        int rx = ((op >>> 8) & 0xF) * lanes.count;
+        int ry = ((op >>> 4) & 0xF) * lanes.count;
+        int rf = 0xF * lanes.count;
+        boolean vfreset = lanes.quirkProfile.vfreset;
+        boolean shift = lanes.quirkProfile.shift;
+        IntVector zero = IntVector.zero(SPECIES);
+
+        int bound = SPECIES.loopBound(lanes.count);
+        for(int m = 0; m < bound; m += SPECIES.length()){
+            if(vfreset && (n == 0x2 || n == 0x3)){
+                zero.intoArray(v, rf + m);
+            }
+            IntVector vx = IntVector.fromArray(SPECIES, v, rx + m);
+            IntVector vy = IntVector.fromArray(SPECIES, v, ry + m);
+
+            switch (n) {
+                case 0x1 -> {
+                    vx.or(vy).intoArray(v, rx + m);
+                    if(vfreset) zero.intoArray(v, rf + m);
+                }
+                case 0x2 -> vx.and(vy).intoArray(v, rx + m);
+                case 0x3 -> vx.lanewise(VectorOperators.XOR, vy).intoArray(v, rx + m);
+                case 0x4 -> {
+                    IntVector sum = vx.add(vy);
+                    sum.and(0xFF).intoArray(v, rx + m);
+                    sum.lanewise(VectorOperators.LSHR, 8).intoArray(v, rf + m);
+                }
+                case 0x5 -> {
+                    IntVector noBorrow = zero.blend(1, vx.compare(VectorOperators.GE, vy));
+                    vx.sub(vy).and(0xFF).intoArray(v, rx + m);
+                    noBorrow.intoArray(v, rf + m);
+                }
+                case 0x6 -> {
+                    IntVector value = shift ? vx : vy;
+                    value.lanewise(VectorOperators.LSHR, 1).intoArray(v, rx + m);
+                    value.and(0x1).intoArray(v, rf + m);
+                }
+                case 0x7 -> {
+                    IntVector noBorrow = zero.blend(1, vy.compare(VectorOperators.GE, vx));
+                    vy.sub(vx).and(0xFF).intoArray(v, rx + m);
+                    noBorrow.intoArray(v, rf + m);
+                }
+                default -> { // 0xE
+                    IntVector value = shift ? vx : vy;
+                    value.lanewise(VectorOperators.LSHL, 1).and(0xFF).intoArray(v, rx + m);
+                    value.lanewise(VectorOperators.LSHR, 7).intoArray(v, rf + m);
+                }
+            }
+        }
+        return lanes.arithmetic(op, bound, lanes.count);
+    }
+
+    // FX1E
+    static void addIndex(LockstepMachines lanes, int x){
+        int[] v = lanes.v;
+        int[] index = lanes.index;
+        int rx = x * lanes.count;
+
+        int bound = SPECIES.loopBound(lanes.count);
+        for(int m = 0; m < bound; m += SPECIES.length()){
+            IntVector.fromArray(SPECIES, index, m).add(IntVector.fromArray(SPECIES, v, rx + m)).and(0xFFFF).intoArray(index, m);
+        }
+        lanes.addIndex(x, bound, lanes.count);
+    }
+
+    // FX29
+    static void font(LockstepMachines lanes, int x){
+        int[] v = lanes.v;
+        int[] index = lanes.index;
+        int rx = x * lanes.count;
+
+        int bound = SPECIES.loopBound(lanes.count);
+        for(int m = 0; m < bound; m += SPECIES.length()){
+            IntVector.fromArray(SPECIES, v, rx + m).and(0xF).mul(5).add(0x50).intoArray(index, m);
+        }
+        lanes.font(x, bound, lanes.count);
+    }
+}
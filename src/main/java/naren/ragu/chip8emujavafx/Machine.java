@@ -0,0 +1,177 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * Drives a {@link Chip8} without any JavaFX dependency.
+ * A frame is one timer update followed by instructionsPerFrame cycles, the same order
+ * the emulator window uses, but nothing here waits on real time.
+ */
+public class Machine {
+
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 8;
+
+    final Chip8 chip8;
+
+    private int instructionsPerFrame;
+    private int frameCycle; // cycles already executed in the current frame
+
+    private long cycles;
+    private long frames;
+
+    private ExecutionEngine engine = ExecutionEngine.INTERPRETER;
+
+    private boolean skipIdleLoops = true;
+    private long skippedCycles;
+
+    public Machine(){
+        this(new Chip8(), DEFAULT_INSTRUCTIONS_PER_FRAME);
+    }
+
+    public Machine(Chip8 chip8, int instructionsPerFrame){
+        this.chip8 = chip8;
+        setInstructionsPerFrame(instructionsPerFrame);
+    }
+
+    public Chip8 getChip8(){
+        return chip8;
+    }
+
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame){
+        if(instructionsPerFrame < 1){
+            throw new IllegalArgumentException("instructionsPerFrame must be at least 1: " + instructionsPerFrame);
+        }
+        this.instructionsPerFrame = instructionsPerFrame;
+        frameCycle = Math.min(frameCycle, instructionsPerFrame - 1);
+    }
+
+    public ExecutionEngine getEngine(){
+        return engine;
+    }
+
+    // Runs CHIP-8 roms, SUPER-CHIP and XO-CHIP ones always run on the interpreter
+    public void setEngine(ExecutionEngine engine){
+        this.engine = engine;
+    }
+
+    public long getCycles(){
+        return cycles;
+    }
+
+    public long getFrames(){
+        return frames;
+    }
+
+    // Whole iterations of loops that only wait for the next frame or a key are counted instead of run,
+    // see Chip8.idleLoopLength(). The machine ends up in the same state either way
+    public void setSkipIdleLoops(boolean skipIdleLoops){
+        this.skipIdleLoops = skipIdleLoops;
+    }
+
+    public boolean isSkippingIdleLoops(){
+        return skipIdleLoops;
+    }
+
+    // Cycles that were accounted for without being run, waiting on FX0A included
+    public long getSkippedCycles(){
+        return skippedCycles;
+    }
+
+    public boolean isHalted(){
+        return !chip8.emulate;
+    }
+
+    // Reset the machine and load a rom from disk
+    public void load(String romPath){
+        reset();
+        chip8.loadGame(romPath);
+    }
+
+    public void reset(){
+        chip8.initialize();
+        chip8.emulate = true;
+        frameCycle = 0;
+        cycles = 0;
+        frames = 0;
+        skippedCycles = 0;
+    }
+
+    // Go round an idle loop pc is in as many whole times as budget allows, returns the cycles that took or 0.
+    // A frame usually ends part way round, the instructions back to the start of the loop are interpreted
+    // first and the ones left over at the end are run by the engine
+    private int skipIdleLoop(int budget){
+        for(int back = 0; back <= 4; back += 2){
+            int start = chip8.pc - back;
+            int length = chip8.idleLoopLength(start);
+            if(length == 0 || back >= length * 2) continue;
+
+            int lead = (length - back / 2) % length;
+            if(budget < lead + length){
+                return 0;
+            }
+            int ran = ExecutionEngine.INTERPRETER.execute(chip8, lead);
+            if(chip8.pc != start){
+                return ran; // a register read on an earlier frame let it out of the loop
+            }
+            int skipped = (budget - lead) / length * length;
+            chip8.skipIdleLoop(length);
+            skippedCycles += skipped;
+            return lead + skipped;
+        }
+        return 0;
+    }
+
+    // Execute a single instruction, updating timers first if a new frame starts
+    public void step(){
+        runCycles(1);
+    }
+
+    // Run up to count cycles, stopping early if the rom halts. Returns the number of cycles run
+    public long runCycles(long count){
+        long start = cycles;
+        long remaining = count;
+        while(remaining > 0 && chip8.emulate){
+            if(frameCycle == 0){
+                chip8.updateTimers();
+            }
+
+            // engines never run past the end of a frame, so timers always tick between the same instructions
+            int budget = (int) Math.min(instructionsPerFrame - frameCycle, remaining);
+            int executed;
+            if(chip8.keyWaitRegister >= 0){
+                executed = budget; // engines would give the budget up as well
+                skippedCycles += budget;
+            }
+            else if(skipIdleLoops && (executed = skipIdleLoop(budget)) > 0){
+                // skipped, or stepped to the start of an idle loop that the budget was too short to skip
+            }
+            else if(chip8.variant != Variant.CHIP8){
+                executed = ExecutionEngine.INTERPRETER.execute(chip8, budget); // engines only know CHIP-8
+            }
+            else{
+                executed = engine.execute(chip8, budget);
+            }
+            cycles += executed;
+            remaining -= executed;
+            frameCycle += executed;
+
+            if(frameCycle == instructionsPerFrame){
+                frameCycle = 0;
+                frames++;
+            }
+        }
+        return cycles - start;
+    }
+
+    // Run up to count whole frames, stopping early if the rom halts. Returns the number of frames run
+    public long runFrames(long count){
+        long start = frames;
+        long target = frames + count;
+        while(frames < target && chip8.emulate){
+            runCycles(instructionsPerFrame - frameCycle);
+        }
+        return frames - start;
+    }
+}
@@ -0,0 +1,130 @@
+package naren.ragu.chip8emujavafx;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Machine states for hosting thousands of instances, kept off the heap in one direct buffer.
+ *
+ * Every machine gets a fixed size slot holding the {@link SaveState} payload layout: registers, one byte
+ * per memory cell and the packed display, about 4.4 KB against the ~30 KB of arrays a Chip8 carries.
+ * Nothing in a slot points anywhere, so idle machines add no GC work and duplicating one is a single
+ * bulk copy. The font is not kept apart, every machine starts from the shared {@link Chip8#FONTSET}.
+ *
+ * Slots are run through a working Chip8: load() a slot into it, run it, store() it back. One Chip8 (or
+ * Machine) can serve every slot in turn. Store at frame boundaries, the position within a frame and the
+ * keypad are not part of the state. Only {@link Variant#CHIP8} machines fit in a slot. Not thread safe,
+ * use one pool per thread.
+ */
+public final class MachinePool {
+
+    // Rounded up to a cache line so slots never share one
+    static final int SLOT_SIZE = (SaveState.PAYLOAD_SIZE + 63) & ~63;
+
+    private final int capacity;
+    private final ByteBuffer slots;
+    private final ByteBuffer cursor; // same memory as slots, moved to whichever slot is read or written
+
+    private final boolean[] allocated;
+    private final int[] free; // stack of free slots, lowest slot on top
+    private int freeCount;
+
+    public MachinePool(int capacity){
+        if(capacity < 1 || capacity > Integer.MAX_VALUE / SLOT_SIZE){
+            throw new IllegalArgumentException("Unsupported pool capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        cursor = slots.duplicate();
+
+        allocated = new boolean[capacity];
+        free = new int[capacity];
+        for(int i = 0; i < capacity; i++){
+            free[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public int getAllocated(){
+        return capacity - freeCount;
+    }
+
+    public boolean isAllocated(int slot){
+        return slot >= 0 && slot < capacity && allocated[slot];
+    }
+
+    // Take a free slot holding the state of chip8, -1 when the pool is full
+    public int allocate(Chip8 chip8){
+        checkVariant(chip8);
+        if(freeCount == 0){
+            return -1;
+        }
+        int slot = free[--freeCount];
+        allocated[slot] = true;
+        store(slot, chip8);
+        return slot;
+    }
+
+    // Take a free slot holding a copy of slot, -1 when the pool is full
+    public int duplicate(int slot){
+        check(slot);
+        if(freeCount == 0){
+            return -1;
+        }
+        int copy = free[--freeCount];
+        allocated[copy] = true;
+        copy(slot, copy);
+        return copy;
+    }
+
+    public void release(int slot){
+        check(slot);
+        allocated[slot] = false;
+        free[freeCount++] = slot;
+    }
+
+    // Overwrite slot to with the state in slot from
+    public void copy(int from, int to){
+        check(from);
+        check(to);
+        slots.put(to * SLOT_SIZE, slots, from * SLOT_SIZE, SaveState.PAYLOAD_SIZE);
+    }
+
+    public void store(int slot, Chip8 chip8){
+        check(slot);
+        checkVariant(chip8);
+        cursor.position(slot * SLOT_SIZE);
+        SaveState.encodePayload(chip8, cursor);
+    }
+
+    // Make chip8 run the machine in slot. Its quirk settings and keys are left as they are
+    public void load(int slot, Chip8 chip8){
+        check(slot);
+        cursor.position(slot * SLOT_SIZE);
+        SaveState.decodePayload(cursor, chip8);
+    }
+
+    // Same value as SaveState.hash() of the stored machine
+    public int hash(int slot){
+        check(slot);
+        CRC32 crc = new CRC32();
+        crc.update(slots.slice(slot * SLOT_SIZE, SaveState.PAYLOAD_SIZE));
+        return (int) crc.getValue();
+    }
+
+    private static void checkVariant(Chip8 chip8){
+        if(chip8.variant != Variant.CHIP8){
+            throw new IllegalArgumentException("Pool slots only hold CHIP-8 machines, not " + chip8.variant);
+        }
+    }
+
+    private void check(int slot){
+        if(!isAllocated(slot)){
+            throw new IllegalArgumentException("Slot not allocated: " + slot);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * Notified when a {@link Chip8} writes to its memory or swaps its quirk profile, so cached translations
+ * of that memory, or translations specialized for the old profile, can be dropped.
+ */
+interface MemoryWriteListener {
+    void memoryWritten(int address, int length);
+
+    void quirkProfileChanged();
+}
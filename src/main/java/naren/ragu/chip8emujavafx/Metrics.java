@@ -0,0 +1,276 @@
+package naren.ragu.chip8emujavafx;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime metrics of one emulator: executed instructions by opcode class, cycles, frames with their
+ * emulation and render times, achieved against target speed, and audio health. Exposed over JMX with
+ * {@link #register()} and as a Prometheus text file rewritten in the background with {@link #startDump}.
+ *
+ * Every value has a single writer, so nothing here locks, CASes or boxes. The interpreter and compiled
+ * blocks count instructions in Chip8.opcodeCounts, a plain array the emulation thread drains here once
+ * per frame. Everything else is written once per frame or per tick, render times by the FX thread.
+ * Readers see each value as of the last write, possibly from a frame that is half recorded.
+ */
+public final class Metrics implements MetricsMBean {
+
+    static final String OBJECT_NAME = "naren.ragu.chip8emujavafx:type=Metrics";
+    static final String[] OPCODE_CLASSES = {"0NNN", "1NNN", "2NNN", "3XNN", "4XNN", "5XYN", "6XNN", "7XNN",
+            "8XYN", "9XY0", "ANNN", "BNNN", "CXNN", "DXYN", "EXNN", "FXNN"};
+
+    private final AtomicLongArray opcodes = new AtomicLongArray(OPCODE_CLASSES.length);
+    private final Histogram frameTime = new Histogram(Histogram.TIME_BOUNDS);
+    private final Histogram renderTime = new Histogram(Histogram.TIME_BOUNDS);
+
+    private volatile long cycles;
+    private volatile long skippedCycles;
+    private volatile long invalidOpcodes;
+    private volatile long frames;
+    private volatile long lateFrames;
+    private volatile long droppedFrames;
+    private volatile double instructionsPerSecond;
+    private volatile double targetInstructionsPerSecond;
+    private volatile long audioUnderruns;
+    private volatile double audioLatencyMillis;
+
+    private ScheduledExecutorService writer;
+    private Path dumpPath;
+
+    // One emulated frame: cycles run, skipped of them idle, invalid opcodes met and the time it took.
+    // Takes the instruction counts chip8 gathered since the last call
+    void recordFrame(Chip8 chip8, long cycles, long skipped, long invalid, long nanos){
+        long[] counts = chip8.opcodeCounts;
+        for(int i = 0; i < counts.length; i++){
+            if(counts[i] != 0){
+                opcodes.lazySet(i, opcodes.get(i) + counts[i]);
+                counts[i] = 0;
+            }
+        }
+        this.cycles += cycles;
+        skippedCycles += skipped;
+        invalidOpcodes += invalid;
+        frames++;
+        frameTime.record(nanos);
+    }
+
+    // A frame that took longer to emulate than the real time it stands for
+    void recordLateFrame(){
+        lateFrames++;
+    }
+
+    // Only called from the FX thread
+    void recordRender(long nanos){
+        renderTime.record(nanos);
+    }
+
+    void setDroppedFrames(long droppedFrames){
+        this.droppedFrames = droppedFrames;
+    }
+
+    void setSpeed(double instructionsPerSecond, double targetInstructionsPerSecond){
+        this.instructionsPerSecond = instructionsPerSecond;
+        this.targetInstructionsPerSecond = targetInstructionsPerSecond;
+    }
+
+    void setAudio(long underruns, double latencyMillis){
+        audioUnderruns = underruns;
+        audioLatencyMillis = latencyMillis;
+    }
+
+    @Override
+    public long getCycles(){
+        return cycles;
+    }
+
+    @Override
+    public long getSkippedCycles(){
+        return skippedCycles;
+    }
+
+    @Override
+    public long getInvalidOpcodes(){
+        return invalidOpcodes;
+    }
+
+    @Override
+    public long[] getOpcodeClassCounts(){
+        long[] counts = new long[opcodes.length()];
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = opcodes.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public long getFrames(){
+        return frames;
+    }
+
+    @Override
+    public long getLateFrames(){
+        return lateFrames;
+    }
+
+    @Override
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    @Override
+    public double getInstructionsPerSecond(){
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public double getTargetInstructionsPerSecond(){
+        return targetInstructionsPerSecond;
+    }
+
+    @Override
+    public double getFrameTimeMeanMillis(){
+        return frameTime.getMeanMillis();
+    }
+
+    @Override
+    public double getFrameTimeP99Millis(){
+        return frameTime.quantileMillis(0.99);
+    }
+
+    @Override
+    public double getRenderTimeMeanMillis(){
+        return renderTime.getMeanMillis();
+    }
+
+    @Override
+    public double getRenderTimeP99Millis(){
+        return renderTime.quantileMillis(0.99);
+    }
+
+    @Override
+    public long getAudioUnderruns(){
+        return audioUnderruns;
+    }
+
+    @Override
+    public double getAudioLatencyMillis(){
+        return audioLatencyMillis;
+    }
+
+    @Override
+    public String dump(){
+        StringBuilder out = new StringBuilder();
+        counter(out, "chip8_cycles_total", "Emulated cycles, executed and skipped in idle loops", cycles);
+        counter(out, "chip8_idle_skipped_cycles_total", "Cycles skipped in idle loops and FX0A waits", skippedCycles);
+
+        out.append("# HELP chip8_instructions_total Executed instructions by opcode class\n");
+        out.append("# TYPE chip8_instructions_total counter\n");
+        for(int i = 0; i < OPCODE_CLASSES.length; i++){
+            out.append("chip8_instructions_total{class=\"").append(OPCODE_CLASSES[i]).append("\"} ")
+                    .append(opcodes.get(i)).append('\n');
+        }
+
+        counter(out, "chip8_invalid_opcodes_total", "Invalid opcodes executed", invalidOpcodes);
+        counter(out, "chip8_frames_total", "Emulated frames", frames);
+        counter(out, "chip8_late_frames_total", "Frames that took longer to emulate than their share of real time", lateFrames);
+        counter(out, "chip8_dropped_frames_total", "Frames given up after a stall", droppedFrames);
+        gauge(out, "chip8_instructions_per_second", "Achieved emulation speed", instructionsPerSecond);
+        gauge(out, "chip8_target_instructions_per_second", "Speed setting, 0 while turbo runs unthrottled",
+                targetInstructionsPerSecond);
+        frameTime.writePrometheus(out, "chip8_frame_seconds", "Time spent emulating one frame");
+        renderTime.writePrometheus(out, "chip8_render_seconds", "Time spent drawing one frame");
+        counter(out, "chip8_audio_underruns_total", "Times the audio output ran dry", audioUnderruns);
+        gauge(out, "chip8_audio_latency_seconds", "Audio output latency", audioLatencyMillis / 1000);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
+    // Written next to path and moved over it, so a scraper never reads half a file
+    public void write(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(temp, dump());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Rewrite path every periodMillis from a background thread, and a last time on stopDump()
+    public void startDump(Path path, long periodMillis){
+        stopDump();
+        dumpPath = path;
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Chip8 Metrics Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleAtFixedRate(this::writeDump, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopDump(){
+        if(writer == null){
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        writeDump();
+    }
+
+    private void writeDump(){
+        try {
+            write(dumpPath);
+        } catch (IOException e) {
+            System.out.println("IOException caught when writing metrics! " + e.getMessage());
+        }
+    }
+
+    // Register with the platform MBean server, replacing an earlier instance
+    public void register(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name)){
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("JMException caught when registering metrics! " + e.getMessage());
+        }
+    }
+
+    public void unregister(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name)){
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            System.out.println("JMException caught when unregistering metrics! " + e.getMessage());
+        }
+    }
+}
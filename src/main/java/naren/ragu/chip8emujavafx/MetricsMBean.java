@@ -0,0 +1,42 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * JMX view of {@link Metrics}, registered as naren.ragu.chip8emujavafx:type=Metrics.
+ */
+public interface MetricsMBean {
+
+    long getCycles();
+
+    long getSkippedCycles();
+
+    long getInvalidOpcodes();
+
+    // Executed instructions by first nibble, index 0xD is DXYN
+    long[] getOpcodeClassCounts();
+
+    long getFrames();
+
+    long getLateFrames();
+
+    long getDroppedFrames();
+
+    double getInstructionsPerSecond();
+
+    // 0 while turbo runs unthrottled
+    double getTargetInstructionsPerSecond();
+
+    double getFrameTimeMeanMillis();
+
+    double getFrameTimeP99Millis();
+
+    double getRenderTimeMeanMillis();
+
+    double getRenderTimeP99Millis();
+
+    long getAudioUnderruns();
+
+    double getAudioLatencyMillis();
+
+    // Everything above in the Prometheus text format
+    String dump();
+}
@@ -0,0 +1,32 @@
+package naren.ragu.chip8emujavafx;
+
+/**
+ * Throws samples away, counting them. Stands in for the audio device when there is none.
+ */
+public class NullAudioSink implements AudioSink {
+
+    private final float sampleRate;
+    private long samples;
+
+    public NullAudioSink(float sampleRate){
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public float getSampleRate(){
+        return sampleRate;
+    }
+
+    public long getSamples(){
+        return samples;
+    }
+
+    @Override
+    public void write(byte[] samples, int offset, int length){
+        this.samples += length;
+    }
+
+    @Override
+    public void close(){
+    }
+}
@@ -0,0 +1,95 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Numbered in-memory save slots. Each slot is a preallocated {@link Chip8} that states are copied
+ * in and out of with System.arraycopy, so saving and loading never allocate.
+ *
+ * A slot can also be flushed to disk as a {@link SaveState}: it is encoded on the calling thread
+ * and written by a single background thread, so the emulation thread never waits on the disk.
+ * All other methods must be called from the emulation thread.
+ */
+public class QuickSaveSlots {
+
+    public static final int DEFAULT_SLOTS = 4;
+
+    private final Chip8[] slots;
+    private final boolean[] used;
+
+    private ExecutorService writer;
+
+    public QuickSaveSlots(int count){
+        slots = new Chip8[count];
+        used = new boolean[count];
+        for(int i = 0; i < count; i++){
+            slots[i] = new Chip8();
+        }
+    }
+
+    public int getCount(){
+        return slots.length;
+    }
+
+    public boolean isUsed(int slot){
+        return used[slot];
+    }
+
+    public void save(int slot, Chip8 chip8){
+        slots[slot].copyStateFrom(chip8);
+        used[slot] = true;
+    }
+
+    // Returns false and leaves chip8 alone if nothing was saved in the slot
+    public boolean load(int slot, Chip8 chip8){
+        if(!used[slot]){
+            return false;
+        }
+        chip8.copyStateFrom(slots[slot]);
+        return true;
+    }
+
+    // Write the slot to path in the background
+    public void flush(int slot, Path path){
+        if(!used[slot]){
+            return;
+        }
+
+        ByteBuffer state = ByteBuffer.allocate(SaveState.size(slots[slot]));
+        SaveState.encode(slots[slot], state);
+        state.flip();
+
+        if(writer == null){
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Chip8 Quick Save Writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        writer.execute(() -> {
+            try {
+                SaveState.write(state, path);
+            } catch (IOException e) {
+                System.out.println("IOException caught when writing quick save! " + e.getMessage());
+            }
+        });
+    }
+
+    // Finish pending writes
+    public void shutdown(){
+        if(writer == null){
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
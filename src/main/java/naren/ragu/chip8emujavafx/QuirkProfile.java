@@ -0,0 +1,78 @@
+package naren.ragu.chip8emujavafx;
+
+import java.util.Dictionary;
+
+/**
+ * Immutable snapshot of the quirk settings, compiled from the quirks dictionary when a rom starts
+ * so the interpreter only reads final primitive fields while executing.
+ */
+public final class QuirkProfile {
+
+    public static final QuirkProfile NONE = new QuirkProfile(false, false, false, false, false, false);
+
+    final boolean shift;
+    final boolean memoryIncrementByX;
+    final boolean memoryLeaveIUnchanged;
+    final boolean jump;
+    final boolean wrap;
+    final boolean vfreset;
+
+    public QuirkProfile(boolean shift, boolean memoryIncrementByX, boolean memoryLeaveIUnchanged,
+                        boolean jump, boolean wrap, boolean vfreset){
+        this.shift = shift;
+        this.memoryIncrementByX = memoryIncrementByX;
+        this.memoryLeaveIUnchanged = memoryLeaveIUnchanged;
+        this.jump = jump;
+        this.wrap = wrap;
+        this.vfreset = vfreset;
+    }
+
+    static QuirkProfile of(Dictionary<String, Boolean> quirks){
+        return new QuirkProfile(
+                quirks.get("shift"),
+                quirks.get("memoryIncrementByX"),
+                quirks.get("memoryLeaveIUnchanged"),
+                quirks.get("jump"),
+                quirks.get("wrap"),
+                quirks.get("vfreset"));
+    }
+
+    // One bit per quirk, in declaration order starting from shift, used by save states
+    int toBits(){
+        return (shift ? 1 : 0) | (memoryIncrementByX ? 2 : 0) | (memoryLeaveIUnchanged ? 4 : 0)
+                | (jump ? 8 : 0) | (wrap ? 16 : 0) | (vfreset ? 32 : 0);
+    }
+
+    static QuirkProfile fromBits(int bits){
+        return new QuirkProfile((bits & 1) != 0, (bits & 2) != 0, (bits & 4) != 0,
+                (bits & 8) != 0, (bits & 16) != 0, (bits & 32) != 0);
+    }
+
+    // Amount FX55/FX65 add to I after transferring registers V0 to VX
+    int loadStoreIncrement(int x){
+        if(memoryLeaveIUnchanged) return 0;
+        return memoryIncrementByX ? x : x + 1;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o) return true;
+        if(!(o instanceof QuirkProfile)) return false;
+        QuirkProfile other = (QuirkProfile) o;
+        return shift == other.shift && memoryIncrementByX == other.memoryIncrementByX
+                && memoryLeaveIUnchanged == other.memoryLeaveIUnchanged && jump == other.jump
+                && wrap == other.wrap && vfreset == other.vfreset;
+    }
+
+    @Override
+    public int hashCode(){
+        return toBits();
+    }
+
+    @Override
+    public String toString(){
+        return "QuirkProfile[shift=" + shift + ", memoryIncrementByX=" + memoryIncrementByX
+                + ", memoryLeaveIUnchanged=" + memoryLeaveIUnchanged + ", jump=" + jump
+                + ", wrap=" + wrap + ", vfreset=" + vfreset + "]";
+    }
+}
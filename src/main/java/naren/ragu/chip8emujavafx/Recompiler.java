@@ -0,0 +1,623 @@
+package naren.ragu.chip8emujavafx;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Execution engine that translates basic blocks into JVM bytecode.
+ *
+ * A block starts at pc and runs until an instruction that changes control flow (jumps, calls, returns)
+ * or writes memory (FX33, FX55). A skip guards the instruction after it with a branch inside the block,
+ * unless that instruction is another skip. Each block is defined as a hidden class that works
+ * directly on the V, I, memory and display fields of the Chip8, and is cached by its entry address until a
+ * memory write overlaps it. Blocks call the quirk variants of the current profile, and are all dropped when
+ * the Chip8 swaps profiles. Halts, FX0A and invalid opcodes are left to the interpreter.
+ *
+ * Executed instructions are counted into Chip8.opcodeCounts like the interpreter does, without a count per
+ * instruction: each block keeps the counts of the instructions it always runs and how often it ran, and
+ * these are added to the Chip8 when execute() returns or the block is dropped. A guarded instruction
+ * counts itself when its skip isn't taken.
+ */
+public class Recompiler implements ExecutionEngine, MemoryWriteListener {
+
+    static final int MAX_BLOCK_LENGTH = 32;
+    static final int MAX_RECOMPILATIONS = 8; // after this many invalidations an address is left to the interpreter
+
+    private static final String CHIP8 = "naren/ragu/chip8emujavafx/Chip8";
+    private static final String BLOCK = "naren/ragu/chip8emujavafx/Recompiler$Block";
+
+    // Chip8 methods implementing 8XY1 to 8XYE, by N
+    private static final String[] ARITHMETIC = {null, "or", "and", "xor", "add", "subtract", "shiftRight",
+            "subtractReverse", null, null, null, null, null, null, "shiftLeft", null};
+    // the same with the vfreset quirk
+    private static final String[] ARITHMETIC_RESET_VF = {null, "orResetVf", "andResetVf", "xorResetVf", "add",
+            "subtract", "shiftRight", "subtractReverse", null, null, null, null, null, null, "shiftLeft", null};
+
+    interface Block {
+        // Returns the number of instructions executed, less than the block length when skips are taken
+        int run(Chip8 chip8);
+    }
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private Chip8 attached;
+    private final Block[] blocks = new Block[4096];
+    private final int[] blockLengths = new int[4096];  // instruction count, 0 if the address has no block
+    private final boolean[] uncompilable = new boolean[4096]; // addresses whose first instruction needs the interpreter
+    private final byte[] recompilations = new byte[4096];     // self modifying code keeps invalidating these
+
+    private final long[][] blockOpcodeCounts = new long[4096][]; // unguarded instructions of each block by first nibble
+    private final long[] blockRuns = new long[4096];            // runs not yet added to the attached Chip8's counts
+    private final boolean[] listed = new boolean[4096];
+    private final int[] ranBlocks = new int[4096];              // blocks with runs, each listed once
+    private int ranBlockCount;
+
+    private long compiledBlocks;
+    private long invalidatedBlocks;
+
+    @Override
+    public int execute(Chip8 chip8, int cycles){
+        if(chip8 != attached){
+            attach(chip8);
+        }
+
+        int executed = 0;
+        while(executed < cycles && chip8.emulate){
+            if(chip8.keyWaitRegister >= 0){
+                countRuns();
+                return cycles; // same as the interpreter, nothing runs while FX0A waits
+            }
+            int pc = chip8.pc;
+            int remaining = cycles - executed;
+
+            if(pc < blocks.length && !uncompilable[pc]){
+                if(blocks[pc] == null){
+                    compile(chip8, pc, remaining);
+                }
+
+                Block block = blocks[pc];
+                if(block != null && blockLengths[pc] <= remaining){
+                    // counted before running, the block may write over itself and be dropped
+                    if(blockRuns[pc]++ == 0 && !listed[pc]){
+                        listed[pc] = true;
+                        ranBlocks[ranBlockCount++] = pc;
+                    }
+                    executed += block.run(chip8);
+                    continue;
+                }
+            }
+
+            // block doesn't fit in what's left of the frame, or can't be compiled
+            chip8.emulateCycle();
+            executed++;
+        }
+        countRuns();
+        return executed;
+    }
+
+    // Add the runs of every block since the last call to the attached Chip8's opcode counts
+    private void countRuns(){
+        for(int i = 0; i < ranBlockCount; i++){
+            int start = ranBlocks[i];
+            countRuns(start);
+            listed[start] = false;
+        }
+        ranBlockCount = 0;
+    }
+
+    private void countRuns(int start){
+        long runs = blockRuns[start];
+        if(runs == 0) return;
+        long[] counts = blockOpcodeCounts[start];
+        long[] total = attached.opcodeCounts;
+        for(int opcodeClass = 0; opcodeClass < counts.length; opcodeClass++){
+            total[opcodeClass] += runs * counts[opcodeClass];
+        }
+        blockRuns[start] = 0;
+    }
+
+    public long getCompiledBlocks(){
+        return compiledBlocks;
+    }
+
+    public long getInvalidatedBlocks(){
+        return invalidatedBlocks;
+    }
+
+    private void attach(Chip8 chip8){
+        if(attached != null){
+            countRuns();
+            if(attached.writeListener == this){
+                attached.writeListener = null;
+            }
+        }
+        attached = chip8;
+        chip8.writeListener = this;
+        flush();
+    }
+
+    private void flush(){
+        for(int i = 0; i < blocks.length; i++){
+            if(blocks[i] != null) invalidatedBlocks++;
+            blocks[i] = null;
+            blockLengths[i] = 0;
+            uncompilable[i] = false;
+            recompilations[i] = 0;
+        }
+    }
+
+    @Override
+    public void memoryWritten(int address, int length){
+        int end = Math.min(address + length, blocks.length);
+        // any block starting up to MAX_BLOCK_LENGTH instructions earlier may cover the written bytes
+        for(int start = Math.max(0, address - 2 * MAX_BLOCK_LENGTH + 1); start < end; start++){
+            int instructions = uncompilable[start] ? 1 : blockLengths[start];
+            if(instructions > 0 && start + 2 * instructions > address){
+                countRuns(start);
+                if(blocks[start] != null){
+                    invalidatedBlocks++;
+                    if(recompilations[start] < MAX_RECOMPILATIONS) recompilations[start]++;
+                }
+                blocks[start] = null;
+                blockLengths[start] = 0;
+                uncompilable[start] = false;
+            }
+        }
+    }
+
+    @Override
+    public void quirkProfileChanged(){
+        // not an invalidation caused by the code, so recompilations start over too
+        countRuns();
+        flush();
+    }
+
+    // Instruction classification
+
+    private static boolean compilable(int opcode){
+        int lo = opcode & 0xFF;
+        int n = opcode & 0xF;
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                return opcode == 0x00E0 || opcode == 0x00EE;
+            case 0x8000:
+                return n <= 0x7 || n == 0xE;
+            case 0xE000:
+                return lo == 0x9E || lo == 0xA1;
+            case 0xF000:
+                return lo == 0x07 || lo == 0x15 || lo == 0x18 || lo == 0x1E || lo == 0x29
+                        || lo == 0x33 || lo == 0x55 || lo == 0x65;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isSkip(int opcode){
+        switch (opcode & 0xF000) {
+            case 0x3000:
+            case 0x4000:
+            case 0x5000:
+            case 0x9000:
+            case 0xE000:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Instructions that end a block, either because they set pc or because they write memory
+    private static boolean endsBlock(int opcode){
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                return opcode == 0x00EE;
+            case 0x1000:
+            case 0x2000:
+            case 0xB000:
+                return true;
+            case 0xF000:
+                return (opcode & 0xFF) == 0x33 || (opcode & 0xFF) == 0x55;
+            default:
+                return false;
+        }
+    }
+
+    // Translation
+
+    private void compile(Chip8 chip8, int start, int maxLength){
+        char[] memory = chip8.memory;
+        int limit = Math.min(MAX_BLOCK_LENGTH, maxLength);
+        if(recompilations[start] >= MAX_RECOMPILATIONS){
+            uncompilable[start] = true;
+            return;
+        }
+
+        int length = 0;
+        int address = start;
+        while(length < limit && address + 1 < memory.length){
+            int opcode = (memory[address] << 8) | memory[address + 1];
+            if(!compilable(opcode)) break;
+            length++;
+            address += 2;
+
+            if(isSkip(opcode)){
+                // the next instruction gets guarded by the skip, anything else ends the block here
+                if(length < limit && address + 1 < memory.length){
+                    int guarded = (memory[address] << 8) | memory[address + 1];
+                    if(compilable(guarded) && !isSkip(guarded)) continue;
+                }
+                break;
+            }
+            if(endsBlock(opcode)) break;
+        }
+
+        if(length == 0){
+            uncompilable[start] = true;
+            return;
+        }
+
+        try {
+            byte[] bytes = generate(memory, start, length, chip8.quirkProfile);
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+            Block block = (Block) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+            blocks[start] = block;
+            blockLengths[start] = length;
+            blockOpcodeCounts[start] = unguardedOpcodeCounts(memory, start, length);
+            compiledBlocks++;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to compile block at " + Integer.toHexString(start), e);
+        }
+    }
+
+    // Instructions of a block that run whenever it does, by first nibble. Guarded ones count themselves
+    private static long[] unguardedOpcodeCounts(char[] memory, int start, int length){
+        long[] counts = new long[16];
+        int address = start;
+        for(int i = 0; i < length; i++){
+            int opcode = (memory[address] << 8) | memory[address + 1];
+            counts[opcode >>> 12]++;
+            address += 2;
+            if(isSkip(opcode) && i + 1 < length){
+                i++;
+                address += 2;
+            }
+        }
+        return counts;
+    }
+
+    private static byte[] generate(char[] memory, int start, int length, QuirkProfile quirks){
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V17, ACC_FINAL | ACC_SUPER, "naren/ragu/chip8emujavafx/CompiledBlock", null,
+                "java/lang/Object", new String[]{BLOCK});
+
+        MethodVisitor init = cw.visitMethod(0, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "run", "(L" + CHIP8 + ";)I", null, null);
+        mv.visitCode();
+
+        // local 1: chip8, local 2: chip8.V, local 3: instructions executed
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitFieldInsn(GETFIELD, CHIP8, "V", "[C");
+        mv.visitVarInsn(ASTORE, 2);
+        push(mv, length);
+        mv.visitVarInsn(ISTORE, 3);
+
+        int address = start;
+        int opcode = 0;
+        boolean finished = false; // pc and opcode already written
+        boolean pcWritten = false;
+        for(int i = 0; i < length; i++){
+            opcode = (memory[address] << 8) | memory[address + 1];
+            address += 2;
+
+            if(!isSkip(opcode) || i + 1 == length){
+                pcWritten = emitInstruction(mv, opcode, address, quirks);
+                continue;
+            }
+
+            // skip followed by a guarded instruction, which is only executed when the condition fails
+            int guarded = (memory[address] << 8) | memory[address + 1];
+            int after = address + 2;
+            boolean last = i + 2 == length;
+            Label taken = new Label();
+            Label join = new Label();
+
+            mv.visitJumpInsn(emitSkipCondition(mv, opcode), taken);
+            countOpcode(mv, guarded);
+            boolean written = emitInstruction(mv, guarded, after, quirks);
+            if(last){
+                if(!written) setPc(mv, after);
+                setOpcode(mv, guarded);
+            }
+            mv.visitJumpInsn(GOTO, join);
+
+            mv.visitLabel(taken);
+            mv.visitIincInsn(3, -1);
+            if(last){
+                setPc(mv, after);
+                setOpcode(mv, opcode);
+            }
+            mv.visitLabel(join);
+
+            finished = last;
+            pcWritten = false;
+            address = after;
+            i++;
+        }
+
+        if(!finished){
+            if(!pcWritten) setPc(mv, address);
+            setOpcode(mv, opcode);
+        }
+
+        mv.visitVarInsn(ILOAD, 3);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    // Emits one instruction for the given quirks, next is the address following it. Returns true if pc has been written
+    private static boolean emitInstruction(MethodVisitor mv, int opcode, int next, QuirkProfile quirks){
+        int x = (opcode >>> 8) & 0xF;
+        int y = (opcode >>> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if(opcode == 0x00E0){
+                    callChip8(mv, "clearScreen", "()V");
+                    return false;
+                }
+                callChip8(mv, "returnFromSubroutine", "()V"); // 00EE
+                return true;
+            case 0x1000:
+                setPc(mv, nnn);
+                return true;
+            case 0x2000:
+                setPc(mv, next);
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, nnn);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "callSubroutine", "(I)V", false);
+                return true;
+            case 0x3000:
+            case 0x4000:
+            case 0x5000:
+            case 0x9000:
+            case 0xE000:
+                skipIf(mv, emitSkipCondition(mv, opcode), next);
+                return true;
+            case 0x6000:
+                storeRegister(mv, x, () -> push(mv, nn));
+                return false;
+            case 0x7000:
+                storeRegister(mv, x, () -> {
+                    loadRegister(mv, x);
+                    push(mv, nn);
+                    mv.visitInsn(IADD);
+                    push(mv, 0xFF);
+                    mv.visitInsn(IAND);
+                });
+                return false;
+            case 0x8000:
+                if(n == 0){
+                    storeRegister(mv, x, () -> loadRegister(mv, y));
+                    return false;
+                }
+                boolean shift = n == 0x6 || n == 0xE;
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, x);
+                push(mv, shift && quirks.shift ? x : y);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, (quirks.vfreset ? ARITHMETIC_RESET_VF : ARITHMETIC)[n], "(II)V", false);
+                return false;
+            case 0xA000:
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, nnn);
+                mv.visitFieldInsn(PUTFIELD, CHIP8, "I", "C");
+                return false;
+            case 0xB000:
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, quirks.jump ? x : 0);
+                push(mv, nnn);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "jumpWithOffset", "(II)V", false);
+                return true;
+            case 0xC000:
+                storeRegister(mv, x, () -> {
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "nextRandomByte", "()I", false);
+                    push(mv, nn);
+                    mv.visitInsn(IAND);
+                });
+                return false;
+            case 0xD000:
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, x);
+                push(mv, y);
+                push(mv, n);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, quirks.wrap ? "drawSpriteWrap" : "drawSprite", "(III)V", false);
+                return false;
+            default: // 0xF000
+                return emitMisc(mv, x, nn, next, quirks);
+        }
+    }
+
+    // Pushes the operands of a skip instruction, returns the comparison under which the skip is taken
+    private static int emitSkipCondition(MethodVisitor mv, int opcode){
+        int x = (opcode >>> 8) & 0xF;
+        int y = (opcode >>> 4) & 0xF;
+        int nn = opcode & 0xFF;
+
+        switch (opcode & 0xF000) {
+            case 0x3000:
+                loadRegister(mv, x);
+                push(mv, nn);
+                return IF_ICMPEQ;
+            case 0x4000:
+                loadRegister(mv, x);
+                push(mv, nn);
+                return IF_ICMPNE;
+            case 0x5000:
+                loadRegister(mv, x);
+                loadRegister(mv, y);
+                return IF_ICMPEQ;
+            case 0x9000:
+                loadRegister(mv, x);
+                loadRegister(mv, y);
+                return IF_ICMPNE;
+            default: // 0xE000, keys >> (V[x] & 0xF) & 1 compared to 0
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitFieldInsn(GETFIELD, CHIP8, "keys", "I");
+                loadRegister(mv, x);
+                push(mv, 0xF);
+                mv.visitInsn(IAND);
+                mv.visitInsn(ISHR);
+                push(mv, 1);
+                mv.visitInsn(IAND);
+                push(mv, 0);
+                return nn == 0x9E ? IF_ICMPNE : IF_ICMPEQ;
+        }
+    }
+
+    private static boolean emitMisc(MethodVisitor mv, int x, int nn, int next, QuirkProfile quirks){
+        switch (nn) {
+            case 0x07:
+                storeRegister(mv, x, () -> {
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitFieldInsn(GETFIELD, CHIP8, "delay_timer", "C");
+                });
+                return false;
+            case 0x15:
+            case 0x18:
+                mv.visitVarInsn(ALOAD, 1);
+                loadRegister(mv, x);
+                mv.visitFieldInsn(PUTFIELD, CHIP8, nn == 0x15 ? "delay_timer" : "sound_timer", "C");
+                return false;
+            case 0x1E:
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitInsn(DUP);
+                mv.visitFieldInsn(GETFIELD, CHIP8, "I", "C");
+                loadRegister(mv, x);
+                mv.visitInsn(IADD);
+                mv.visitInsn(I2C);
+                mv.visitFieldInsn(PUTFIELD, CHIP8, "I", "C");
+                return false;
+            case 0x29:
+                mv.visitVarInsn(ALOAD, 1);
+                loadRegister(mv, x);
+                push(mv, 0xF);
+                mv.visitInsn(IAND);
+                push(mv, 5);
+                mv.visitInsn(IMUL);
+                push(mv, 0x50);
+                mv.visitInsn(IADD);
+                mv.visitFieldInsn(PUTFIELD, CHIP8, "I", "C");
+                return false;
+            case 0x33:
+                // the write may invalidate this block, so pc is final before it happens
+                setPc(mv, next);
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, x);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "storeBcd", "(I)V", false);
+                return true;
+            case 0x55:
+                setPc(mv, next);
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, x);
+                push(mv, quirks.loadStoreIncrement(x));
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "storeRegisters", "(II)V", false);
+                return true;
+            default: // 0x65
+                mv.visitVarInsn(ALOAD, 1);
+                push(mv, x);
+                push(mv, quirks.loadStoreIncrement(x));
+                mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, "loadRegisters", "(II)V", false);
+                return false;
+        }
+    }
+
+    // Bytecode helpers
+
+    private static void callChip8(MethodVisitor mv, String name, String descriptor){
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CHIP8, name, descriptor, false);
+    }
+
+    private static void loadRegister(MethodVisitor mv, int register){
+        mv.visitVarInsn(ALOAD, 2);
+        push(mv, register);
+        mv.visitInsn(CALOAD);
+    }
+
+    private static void storeRegister(MethodVisitor mv, int register, Runnable value){
+        mv.visitVarInsn(ALOAD, 2);
+        push(mv, register);
+        value.run();
+        mv.visitInsn(CASTORE);
+    }
+
+    // chip8.opcodeCounts[opcode >>> 12]++
+    private static void countOpcode(MethodVisitor mv, int opcode){
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitFieldInsn(GETFIELD, CHIP8, "opcodeCounts", "[J");
+        push(mv, opcode >>> 12);
+        mv.visitInsn(DUP2);
+        mv.visitInsn(LALOAD);
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LADD);
+        mv.visitInsn(LASTORE);
+    }
+
+    private static void setOpcode(MethodVisitor mv, int opcode){
+        mv.visitVarInsn(ALOAD, 1);
+        push(mv, opcode);
+        mv.visitFieldInsn(PUTFIELD, CHIP8, "opcode", "C");
+    }
+
+    private static void setPc(MethodVisitor mv, int pc){
+        mv.visitVarInsn(ALOAD, 1);
+        push(mv, pc & 0xFFFF);
+        mv.visitFieldInsn(PUTFIELD, CHIP8, "pc", "C");
+    }
+
+    // Consumes the two ints on the stack, pc skips the next instruction when the comparison holds
+    private static void skipIf(MethodVisitor mv, int comparison, int next){
+        Label skip = new Label();
+        Label done = new Label();
+        mv.visitJumpInsn(comparison, skip);
+        setPc(mv, next);
+        mv.visitJumpInsn(GOTO, done);
+        mv.visitLabel(skip);
+        setPc(mv, next + 2);
+        mv.visitLabel(done);
+    }
+
+    private static void push(MethodVisitor mv, int value){
+        if(value >= -1 && value <= 5){
+            mv.visitInsn(ICONST_0 + value);
+        }
+        else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            mv.visitIntInsn(BIPUSH, value);
+        }
+        else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            mv.visitIntInsn(SIPUSH, value);
+        }
+        else{
+            mv.visitLdcInsn(value);
+        }
+    }
+}
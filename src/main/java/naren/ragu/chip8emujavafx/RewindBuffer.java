@@ -0,0 +1,184 @@
+package naren.ragu.chip8emujavafx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of per-frame machine states for rewinding.
+ *
+ * Only the newest frame is kept in full, as a {@link SaveState} payload. Every older frame is a
+ * backward delta: the XOR of two consecutive payloads, run length encoded as
+ * (unchanged byte count, changed byte count, changed bytes) with varint counts. Deltas live in one
+ * preallocated byte ring and the oldest frames are dropped when it or the frame limit is full.
+ * The states never leave memory, so they go without the file header and checksum, and capturing
+ * and rewinding never allocate.
+ */
+public class RewindBuffer {
+
+    public static final int DEFAULT_SECONDS = 30;
+    public static final int DEFAULT_CAPACITY = 1 << 22; // 4 MB of deltas
+
+    private final ByteBuffer latest = ByteBuffer.allocate(SaveState.MAX_SIZE);
+    private final ByteBuffer current = ByteBuffer.allocate(SaveState.MAX_SIZE);
+    private boolean hasLatest;
+    private Variant latestVariant; // payload sizes only change with the variant, which starts a new rom
+
+    // worst case delta is an unchanged/changed pair for every two bytes
+    private final byte[] scratch = new byte[SaveState.MAX_SIZE * 2 + 16];
+
+    private final byte[] ring;
+    private final int ringMask;
+    private int writePosition;
+    private int used;
+
+    private final int[] entryStart;
+    private final int[] entryLength;
+    private int first; // oldest entry
+    private int count;
+
+    public RewindBuffer(){
+        this(DEFAULT_SECONDS * 60, DEFAULT_CAPACITY);
+    }
+
+    // capacity is rounded up to a power of two
+    public RewindBuffer(int maxFrames, int capacity){
+        ring = new byte[Integer.highestOneBit(Math.max(capacity, scratch.length) - 1) << 1];
+        ringMask = ring.length - 1;
+        entryStart = new int[maxFrames];
+        entryLength = new int[maxFrames];
+    }
+
+    // Number of frames that can be rewound
+    public int getFrames(){
+        return count;
+    }
+
+    // Bytes of delta currently stored
+    public int getUsedBytes(){
+        return used;
+    }
+
+    public void clear(){
+        hasLatest = false;
+        first = 0;
+        count = 0;
+        used = 0;
+        writePosition = 0;
+    }
+
+    // Record the state of chip8 at the end of a frame
+    public void capture(Chip8 chip8){
+        current.clear();
+        SaveState.encodePayload(chip8, current);
+        int size = current.position();
+        if(hasLatest && chip8.variant != latestVariant){
+            clear();
+        }
+
+        if(hasLatest){
+            int length = encodeDelta(latest.array(), current.array(), size);
+            while(count == entryStart.length || used + length > ring.length){
+                dropOldest();
+            }
+            store(length);
+        }
+
+        System.arraycopy(current.array(), 0, latest.array(), 0, size);
+        latestVariant = chip8.variant;
+        hasLatest = true;
+    }
+
+    // Step chip8 back one frame, returns false when there is nothing left to rewind
+    public boolean rewind(Chip8 chip8){
+        if(count == 0){
+            return false;
+        }
+
+        int newest = (first + count - 1) % entryStart.length;
+        applyDelta(entryStart[newest], entryLength[newest]);
+        writePosition = entryStart[newest];
+        used -= entryLength[newest];
+        count--;
+
+        // rewinding restores the machine, not a quirk change made in the settings since
+        QuirkProfile next = chip8.nextQuirkProfile;
+        latest.clear();
+        SaveState.decodePayload(latest, chip8, latestVariant);
+        chip8.nextQuirkProfile = next;
+        return true;
+    }
+
+    private void dropOldest(){
+        used -= entryLength[first];
+        first = (first + 1) % entryStart.length;
+        count--;
+    }
+
+    private void store(int length){
+        int entry = (first + count) % entryStart.length;
+        entryStart[entry] = writePosition;
+        entryLength[entry] = length;
+
+        int tail = Math.min(length, ring.length - writePosition);
+        System.arraycopy(scratch, 0, ring, writePosition, tail);
+        System.arraycopy(scratch, tail, ring, 0, length - tail);
+
+        writePosition = (writePosition + length) & ringMask;
+        used += length;
+        count++;
+    }
+
+    // XOR of a and b into scratch as (unchanged, changed, changed bytes...) runs, returns the length
+    private int encodeDelta(byte[] a, byte[] b, int length){
+        int out = 0;
+        int i = 0;
+        while(i < length){
+            int unchangedStart = i;
+            while(i < length && a[i] == b[i]) i++;
+            int changedStart = i;
+            while(i < length && a[i] != b[i]) i++;
+
+            out = putVarint(changedStart - unchangedStart, out);
+            out = putVarint(i - changedStart, out);
+            for(int j = changedStart; j < i; j++){
+                scratch[out++] = (byte) (a[j] ^ b[j]);
+            }
+        }
+        return out;
+    }
+
+    // XOR a stored delta into latest, turning it into the previous frame
+    private void applyDelta(int start, int length){
+        byte[] state = latest.array();
+        int position = start;
+        int end = start + length;
+        int i = 0;
+        while(position < end){
+            int unchanged = 0;
+            for(int shift = 0; ; shift += 7){
+                byte b = ring[position++ & ringMask];
+                unchanged |= (b & 0x7F) << shift;
+                if(b >= 0) break;
+            }
+            int changed = 0;
+            for(int shift = 0; ; shift += 7){
+                byte b = ring[position++ & ringMask];
+                changed |= (b & 0x7F) << shift;
+                if(b >= 0) break;
+            }
+
+            i += unchanged;
+            for(int j = 0; j < changed; j++){
+                state[i++] ^= ring[position++ & ringMask];
+            }
+        }
+    }
+
+    private int putVarint(int value, int out){
+        while(value >= 0x80){
+            scratch[out++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        scratch[out++] = (byte) value;
+        return out;
+    }
+}
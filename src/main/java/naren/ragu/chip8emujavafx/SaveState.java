@@ -0,0 +1,295 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary save state layout, all values big endian:
+ *
+ * <pre>
+ * header   magic "C8ST" (4), version (2), reserved (2), payload length (4), CRC32 of payload (4)
+ * payload  pc (2), I (2), opcode (2), sp (1), delay timer (1), sound timer (1), flags (1),
+ *          quirk bits (1), random state (8), V0-VF (16), stack (16 x 2), memory (4096), display (32 x 8),
+ *          FX0A register (1), FX0A key (1), both 0xFF when not waiting
+ * SUPER-CHIP and XO-CHIP states go on with
+ *          variant (1), hires (1), planes (1), pitch (1), audio pattern loaded (1), audio pattern (16),
+ *          flag registers (16), memory past 4096, display words past the first 32, second plane
+ * </pre>
+ *
+ * memory and display above are the first 4096 bytes and the first 32 words. CHIP-8 states end after
+ * the FX0A fields, so their payload (and hash) doesn't depend on the other variants.
+ *
+ * Registers and memory are stored one byte per cell. The quirk bits are the running profile
+ * (see {@link QuirkProfile#toBits()}), the quirk settings themselves are not part of the state.
+ */
+public final class SaveState {
+
+    public static final int MAGIC = 0x43385354; // "C8ST"
+    public static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+    static final int PAYLOAD_SIZE = 2 + 2 + 2 + 1 + 1 + 1 + 1 + 1 + 8 + 16 + 16 * 2 + 4096 + 32 * 8 + 1 + 1; // a CHIP-8 payload
+    static final int EXTENSION_HEADER_SIZE = 1 + 1 + 1 + 1 + 1 + 16 + 16;
+    public static final int SIZE = HEADER_SIZE + PAYLOAD_SIZE; // a CHIP-8 state
+    public static final int MAX_SIZE = HEADER_SIZE + payloadSize(Variant.XOCHIP);
+    static final int MAX_FILE_SIZE = 1 << 20; // anything larger is not worth reading
+
+    private static final int FLAG_EMULATE = 1;
+    private static final int FLAG_BEEP = 2;
+
+    private SaveState(){
+    }
+
+    static int payloadSize(Variant variant){
+        if(variant == Variant.CHIP8){
+            return PAYLOAD_SIZE;
+        }
+        return PAYLOAD_SIZE + EXTENSION_HEADER_SIZE + variant.memorySize - Variant.CHIP8.memorySize
+                + (variant.displayWords - Chip8.LORES_ROWS) * 8 + variant.display2Words * 8;
+    }
+
+    // Bytes encode() writes for chip8
+    public static int size(Chip8 chip8){
+        return HEADER_SIZE + payloadSize(chip8.variant);
+    }
+
+    // Write the whole state of chip8 at the buffer's position, advancing it by size(chip8)
+    public static void encode(Chip8 chip8, ByteBuffer buffer){
+        int start = buffer.position();
+        int length = payloadSize(chip8.variant);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(length);
+        buffer.putInt(0); // checksum, filled in below
+
+        int payload = buffer.position();
+        encodePayload(chip8, buffer);
+        buffer.putInt(start + 12, checksum(buffer, payload, length));
+    }
+
+    // Write just the payload at the buffer's position, advancing it by payloadSize(chip8.variant)
+    static void encodePayload(Chip8 chip8, ByteBuffer buffer){
+        buffer.putShort((short) chip8.pc);
+        buffer.putShort((short) chip8.I);
+        buffer.putShort((short) chip8.opcode);
+        buffer.put((byte) chip8.sp);
+        buffer.put((byte) chip8.delay_timer);
+        buffer.put((byte) chip8.sound_timer);
+        buffer.put((byte) ((chip8.emulate ? FLAG_EMULATE : 0) | (chip8.beep ? FLAG_BEEP : 0)));
+        buffer.put((byte) chip8.quirkProfile.toBits());
+        buffer.putLong(chip8.randomState);
+
+        for (char v : chip8.V) {
+            buffer.put((byte) v);
+        }
+        for (char address : chip8.stack) {
+            buffer.putShort((short) address);
+        }
+        for (int i = 0; i < Variant.CHIP8.memorySize; i++) {
+            buffer.put((byte) chip8.memory[i]);
+        }
+        for (int i = 0; i < Chip8.LORES_ROWS; i++) {
+            buffer.putLong(chip8.display[i]);
+        }
+        buffer.put((byte) chip8.keyWaitRegister);
+        buffer.put((byte) chip8.keyWaitKey);
+
+        if (chip8.variant == Variant.CHIP8) {
+            return;
+        }
+        AudioPattern pattern = chip8.audioPattern;
+        buffer.put((byte) chip8.variant.ordinal());
+        buffer.put((byte) (chip8.hires ? 1 : 0));
+        buffer.put((byte) chip8.planes);
+        buffer.put((byte) chip8.pitch);
+        buffer.put((byte) (pattern != null ? 1 : 0));
+        buffer.putLong(pattern != null ? pattern.high() : 0);
+        buffer.putLong(pattern != null ? pattern.low() : 0);
+        for (char flag : chip8.flags) {
+            buffer.put((byte) flag);
+        }
+        for (int i = Variant.CHIP8.memorySize; i < chip8.memory.length; i++) {
+            buffer.put((byte) chip8.memory[i]);
+        }
+        for (int i = Chip8.LORES_ROWS; i < chip8.display.length; i++) {
+            buffer.putLong(chip8.display[i]);
+        }
+        for (long word : chip8.display2) {
+            buffer.putLong(word);
+        }
+    }
+
+    // Restore chip8 from a state at the buffer's position, advancing it by the state's size. chip8 switches
+    // to the variant of the state. The buffer is validated first, chip8 is left untouched if it is not a usable state
+    public static void decode(ByteBuffer buffer, Chip8 chip8) throws IOException {
+        int start = buffer.position();
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt(start) != MAGIC){
+            throw new IOException("Not a Chip8 save state");
+        }
+        short version = buffer.getShort(start + 4);
+        if(version != VERSION){
+            throw new IOException("Unsupported save state version: " + version);
+        }
+        int length = buffer.getInt(start + 8);
+        Variant variant = Variant.CHIP8;
+        if(length > PAYLOAD_SIZE && buffer.remaining() > HEADER_SIZE + PAYLOAD_SIZE){
+            int ordinal = buffer.get(start + HEADER_SIZE + PAYLOAD_SIZE);
+            if(ordinal <= 0 || ordinal >= Variant.values().length){
+                throw new IOException("Unsupported save state variant: " + ordinal);
+            }
+            variant = Variant.values()[ordinal];
+        }
+        if(length != payloadSize(variant) || buffer.remaining() < HEADER_SIZE + length){
+            throw new IOException("Truncated save state");
+        }
+        if(buffer.getInt(start + 12) != checksum(buffer, start + HEADER_SIZE, length)){
+            throw new IOException("Save state checksum mismatch");
+        }
+
+        buffer.position(start + HEADER_SIZE);
+        decodePayload(buffer, chip8, variant);
+    }
+
+    // Restore chip8 from a CHIP-8 payload at the buffer's position without any checks, advancing it by PAYLOAD_SIZE
+    static void decodePayload(ByteBuffer buffer, Chip8 chip8){
+        decodePayload(buffer, chip8, Variant.CHIP8);
+    }
+
+    // Restore chip8 from a payload of the given variant at the buffer's position without any checks
+    static void decodePayload(ByteBuffer buffer, Chip8 chip8, Variant variant){
+        boolean switched = chip8.variant != variant;
+        chip8.setVariant(variant); // resets chip8 if it was running another variant
+        chip8.pc = buffer.getChar();
+        chip8.I = buffer.getChar();
+        chip8.opcode = buffer.getChar();
+        chip8.sp = (char) (buffer.get() & 0xFF);
+        chip8.delay_timer = (char) (buffer.get() & 0xFF);
+        chip8.sound_timer = (char) (buffer.get() & 0xFF);
+        int flags = buffer.get();
+        chip8.emulate = (flags & FLAG_EMULATE) != 0;
+        chip8.beep = (flags & FLAG_BEEP) != 0;
+        chip8.setQuirkProfile(QuirkProfile.fromBits(buffer.get()));
+        chip8.nextQuirkProfile = chip8.quirkProfile;
+        chip8.randomState = buffer.getLong();
+
+        for (int i = 0; i < chip8.V.length; i++) {
+            chip8.V[i] = (char) (buffer.get() & 0xFF);
+        }
+        for (int i = 0; i < chip8.stack.length; i++) {
+            chip8.stack[i] = buffer.getChar();
+        }
+        decodeMemory(buffer, chip8, 0, Variant.CHIP8.memorySize, !switched);
+        for (int i = 0; i < Chip8.LORES_ROWS; i++) {
+            chip8.display[i] = buffer.getLong();
+        }
+        chip8.keyWaitRegister = buffer.get();
+        chip8.keyWaitKey = buffer.get();
+
+        if (variant != Variant.CHIP8) {
+            buffer.get(); // variant, already known
+            chip8.hires = buffer.get() != 0;
+            chip8.planes = buffer.get() & 3;
+            chip8.pitch = buffer.get() & 0xFF;
+            boolean pattern = buffer.get() != 0;
+            long high = buffer.getLong();
+            long low = buffer.getLong();
+            AudioPattern loaded = chip8.audioPattern;
+            if(!pattern){
+                chip8.audioPattern = null;
+            }
+            else if(loaded == null || loaded.high() != high || loaded.low() != low || loaded.pitch() != chip8.pitch){
+                chip8.audioPattern = new AudioPattern(high, low, chip8.pitch);
+            }
+            for (int i = 0; i < chip8.flags.length; i++) {
+                chip8.flags[i] = (char) (buffer.get() & 0xFF);
+            }
+            decodeMemory(buffer, chip8, Variant.CHIP8.memorySize, chip8.memory.length, !switched);
+            for (int i = Chip8.LORES_ROWS; i < chip8.display.length; i++) {
+                chip8.display[i] = buffer.getLong();
+            }
+            for (int i = 0; i < chip8.display2.length; i++) {
+                chip8.display2[i] = buffer.getLong();
+            }
+        }
+
+        if(switched){
+            // every cached decode or compiled block belongs to the other variant
+            chip8.memoryWritten(0, chip8.memory.length);
+        }
+        chip8.dirtyRows = Chip8.ALL_ROWS;
+        chip8.drawFlag = true;
+    }
+
+    // Read memory[from, to), telling chip8 about each run of bytes that changed when invalidate is set,
+    // so cached decodes and compiled blocks over unchanged code survive a load
+    private static void decodeMemory(ByteBuffer buffer, Chip8 chip8, int from, int to, boolean invalidate){
+        int changed = -1; // start of the current run of changed bytes
+        for (int i = from; i < to; i++) {
+            char value = (char) (buffer.get() & 0xFF);
+            if(chip8.memory[i] != value){
+                chip8.memory[i] = value;
+                if(changed < 0){
+                    changed = i;
+                }
+            }
+            else if(changed >= 0){
+                if(invalidate){
+                    chip8.memoryWritten(changed, i - changed);
+                }
+                changed = -1;
+            }
+        }
+        if(changed >= 0 && invalidate){
+            chip8.memoryWritten(changed, to - changed);
+        }
+    }
+
+    // CRC32 of the encoded state, cheap enough to compare runs frame by frame. scratch needs size(chip8) bytes
+    public static int hash(Chip8 chip8, ByteBuffer scratch){
+        scratch.clear();
+        encode(chip8, scratch);
+        return scratch.getInt(12);
+    }
+
+    public static void write(Chip8 chip8, Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size(chip8));
+        encode(chip8, buffer);
+        buffer.flip();
+        write(buffer, path);
+    }
+
+    // Write an already encoded state, from the buffer's position to its limit
+    public static void write(ByteBuffer buffer, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+    }
+
+    // Read a state file into a buffer, decode() checks and applies it
+    public static ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < HEADER_SIZE || size > MAX_FILE_SIZE){
+                throw new IOException("Not a Chip8 save state");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length){
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+}
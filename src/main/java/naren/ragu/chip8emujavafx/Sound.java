@@ -1,83 +1,115 @@
 package naren.ragu.chip8emujavafx;
 
-import javax.sound.sampled.*;
+import javax.sound.sampled.LineUnavailableException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Credit to Michael Arnauts for this file
+ * Beeper output. The emulation thread queues the beeper state of every emulated frame with
+ * {@link #queueFrame(boolean, AudioPattern)} and the play thread hands each one to a {@link Beeper}, so a beep
+ * lasts exactly as many frames as the sound timer ran. The play thread blocks on the queue while
+ * nothing is due and the beeper stops a real time sink after a few silent frames, silence after that
+ * is not even queued.
+ *
+ * Credit to Michael Arnauts for the original version of this file
  * @author Michaël Arnauts (https://github.com/michaelarnauts)
  */
 public class Sound {
-    private boolean isEnabled;
-    private boolean isPlaying;
-    private AudioFormat af;
-    private SourceDataLine sdl;
 
-    private Thread playThread;
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    // 11.6 ms at 44.1 kHz, the line size of the original player. Less than a frame of samples, so the play
+    // thread blocks in write and the frame queued behind it, the lead-in at first, absorbs emulation jitter
+    public static final int DEFAULT_BUFFER_SAMPLES = 512;
 
-    private byte[] buf = new byte[256];
+    // frames waiting beyond this are dropped, running faster than 60 Hz shouldn't build up latency
+    static final int MAX_QUEUED_FRAMES = 8;
+    // a playing sink is stopped after this long without frames
+    static final long IDLE_NANOS = Beeper.IDLE_FRAMES * FramePacer.FRAME_NANOS;
 
-    int volume;
+    private volatile boolean isEnabled;
+    private final Beeper beeper;
 
-    /** Creates a new instance of Sound */
-    public Sound(boolean isEnabled, int volume) {
-        this.volume = volume;
-        try {
-            af = new AudioFormat(44100f, 8, 1, true, true);
-            sdl = AudioSystem.getSourceDataLine(af);
-            sdl.open(af, 512);
-            this.isEnabled = isEnabled;
-            isPlaying = false;
+    // The beeper state of one emulated frame, with the XO-CHIP pattern when one is loaded
+    record Frame(boolean beep, AudioPattern pattern){
+    }
 
-            regenerateSoundBuffer();
+    private static final Frame BEEP = new Frame(true, null);
+    private static final Frame QUIET = new Frame(false, null);
 
-        } catch (LineUnavailableException ex) {
-            ex.printStackTrace();
-            isEnabled = false;
-        }
+    private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private int silentRun; // silent frames queued in a row, only touched by the emulation thread
+
+    private final Thread playThread;
+    private volatile boolean running = true;
+
+    /** Creates a new instance of Sound */
+    public Sound(AudioSink sink, boolean isEnabled, int volume) {
+        this.isEnabled = isEnabled;
+        beeper = new Beeper(sink, volume);
 
         playThread = new PlayThread();
-        playThread.setPriority(Thread.MAX_PRIORITY);
+        playThread.setDaemon(true);
         playThread.start();
     }
 
+    // Plays on the default output device, falling back to a silent sink when there is none
+    public static Sound open(int sampleRate, int bufferSamples, boolean isEnabled, int volume){
+        AudioSink sink;
+        try {
+            sink = new LineAudioSink(sampleRate, bufferSamples);
+        } catch (LineUnavailableException e) {
+            System.out.println("LineUnavailableException caught when opening audio line! " + e.getMessage());
+            sink = new NullAudioSink(sampleRate);
+        }
+        return new Sound(sink, isEnabled, volume);
+    }
+
     int getVolume(){
-        return this.volume;
+        return beeper.getVolume();
     }
 
     void setVolume(int volume){
-        this.volume = volume;
-
-        regenerateSoundBuffer();
+        beeper.setVolume(volume);
     }
 
-    void regenerateSoundBuffer(){
-        // generate the sound to play
-        for (int i=0; i<buf.length; i++) {
-            buf[i] = (byte) ((127 * (Math.sin(i * 0.05f))) * ((double)volume/100));
-        }
+    public AudioSink getSink(){
+        return beeper.getSink();
     }
 
-    public void startSound() {
-        /*
-        if (isPlaying || !isEnabled) return;
-        isPlaying = true;
-
-        playThread = new PlayThread();
-        playThread.setPriority(Thread.MAX_PRIORITY);
-        playThread.start();
-
-        */
+    // Output latency: samples held by the sink plus frames still waiting in the queue
+    public double getLatencyMillis(){
+        return beeper.getLatencyMillis() + (beeper.isActive() ? frames.size() * FramePacer.FRAME_NANOS / 1e6 : 0);
+    }
 
-        if (isPlaying || !isEnabled) return;
-        isPlaying = true;
+    public long getUnderruns(){
+        return beeper.getUnderruns();
     }
 
-    public void stopSound() {
-        isPlaying = false;
+    // Called once per emulated frame from the emulation thread, pattern is null outside XO-CHIP
+    public void queueFrame(boolean beep, AudioPattern pattern) {
+        // the beeper has stopped a real time sink by now, leave the play thread parked
+        silentRun = beep ? 0 : silentRun + 1;
+        if (silentRun > Beeper.IDLE_FRAMES && beeper.getSink().isRealtime()) return;
+
+        Frame frame = pattern != null ? new Frame(beep, pattern) : beep ? BEEP : QUIET;
+        // only the emulation thread offers, so one poll always makes room
+        if (!frames.offer(frame)) {
+            frames.poll();
+            frames.offer(frame);
+        }
     }
 
+    // Stop the play thread and close the sink, waits for at most one frame of samples
     public void endSound(){
-        playThread.stop();
+        running = false;
+        playThread.interrupt();
+        try {
+            playThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        beeper.close();
     }
 
     public void setEnabled(boolean isEnabled) {
@@ -90,26 +122,27 @@ public class Sound {
 
     class PlayThread extends Thread {
 
+        PlayThread(){
+            super("Chip8 Sound");
+        }
+
         public void run(){
             try {
-                sdl.start();
-                while (true){
-                    if(isPlaying) {
-                        sdl.start();
-                        sdl.write(buf, 0, buf.length/4);
+                while (running) {
+                    // nothing is playing: wait as long as it takes, otherwise stop once frames stop coming
+                    Frame frame = beeper.isActive() ? frames.poll(IDLE_NANOS, TimeUnit.NANOSECONDS) : frames.take();
+                    if (frame == null) {
+                        beeper.idle();
                     }
                     else{
-                        sdl.stop();
-                        //sdl.write(new byte[2], 0, 2);
-                        //sdl.stop();
-                        //sdl.drain();
+                        beeper.frame(frame.beep() && isEnabled, frame.pattern());
                     }
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+            } catch (InterruptedException e) {
+                // endSound()
             }
         }
 
     }
 
-}
\ No newline at end of file
+}
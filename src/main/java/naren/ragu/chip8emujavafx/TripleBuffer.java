@@ -0,0 +1,108 @@
+package naren.ragu.chip8emujavafx;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free hand-off of finished frames from the emulation thread to the FX thread.
+ *
+ * The writer copies a frame into its back buffer and swaps it with the shared middle buffer,
+ * the reader swaps the middle buffer with its front buffer only when a newer frame was published.
+ * Neither side ever blocks, and frames the reader was too slow to see are simply overwritten.
+ *
+ * Each frame carries a mask of the rows it changed. Masks of frames the reader skipped are merged
+ * into the next one, so the reader always learns every row that changed since its last frame.
+ * A frame also carries a format word that is passed on as it is, the reader must redraw everything
+ * when it changes, and the time of the earliest key event it is the first frame to show. Times of frames
+ * the reader skipped go to the next frame it takes, or the one after if the writer is mid publish.
+ */
+public class TripleBuffer {
+
+    // middle state: buffer index in bits 32-33, FRESH while unread, changed rows in the low 32 bits
+    private static final int INDEX_SHIFT = 32;
+    private static final long FRESH = 1L << 34;
+    private static final long ROWS_MASK = 0xFFFFFFFFL;
+
+    private final long[][] buffers;
+    private final int[] formats = new int[3];
+    private final long[] inputNanos = new long[3];
+    private final AtomicLong skippedInputNanos = new AtomicLong(-1); // earliest input of overwritten frames
+
+    private final AtomicLong middle = new AtomicLong(1L << INDEX_SHIFT);
+    private int back = 0;  // only touched by the writer
+    private int front = 2; // only touched by the reader
+    private int frontDirtyRows;
+    private long frontInputNanos = -1;
+
+    public TripleBuffer(int size){
+        buffers = new long[3][size];
+    }
+
+    // Writer side: copy a finished frame and make it the latest one
+    public void publish(long[] frame, int dirtyRows){
+        publish(frame, null, 0, dirtyRows);
+    }
+
+    // Writer side: as above for a frame made of the words of frame followed by those of second, if not null
+    public void publish(long[] frame, long[] second, int format, int dirtyRows){
+        publish(frame, second, format, dirtyRows, -1);
+    }
+
+    // Writer side: as above for a frame that first shows a key event from System.nanoTime() input, -1 for none
+    public void publish(long[] frame, long[] second, int format, int dirtyRows, long input){
+        System.arraycopy(frame, 0, buffers[back], 0, frame.length);
+        if(second != null){
+            System.arraycopy(second, 0, buffers[back], frame.length, second.length);
+        }
+        formats[back] = format; // published by the update below
+        inputNanos[back] = input;
+
+        int published = back;
+        long previous = middle.getAndUpdate(state -> {
+            // rows of an unread frame still have to reach the reader
+            long unread = (state & FRESH) != 0 ? state & ROWS_MASK : 0;
+            return (long) published << INDEX_SHIFT | FRESH | unread | (dirtyRows & ROWS_MASK);
+        });
+        back = (int) (previous >>> INDEX_SHIFT) & 3;
+
+        // the frame replaced was never read, the reader has to learn about its input from a later one
+        if((previous & FRESH) != 0 && inputNanos[back] >= 0){
+            skippedInputNanos.accumulateAndGet(inputNanos[back], TripleBuffer::earliest);
+        }
+    }
+
+    // Reader side: take the latest frame if one was published since the last call
+    public boolean acquire(){
+        if((middle.get() & FRESH) == 0){
+            return false;
+        }
+        long previous = middle.getAndSet((long) front << INDEX_SHIFT);
+        front = (int) (previous >>> INDEX_SHIFT) & 3;
+        frontDirtyRows = (int) (previous & ROWS_MASK);
+        frontInputNanos = earliest(inputNanos[front], skippedInputNanos.getAndSet(-1));
+        return true;
+    }
+
+    // Reader side: the frame taken by the last successful acquire()
+    public long[] front(){
+        return buffers[front];
+    }
+
+    // Reader side: the format front() was published with
+    public int frontFormat(){
+        return formats[front];
+    }
+
+    // Reader side: System.nanoTime() of the earliest key event front() is the first to show, -1 for none
+    public long frontInputNanos(){
+        return frontInputNanos;
+    }
+
+    private static long earliest(long a, long b){
+        return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+    }
+
+    // Reader side: rows that changed between the previously acquired frame and front()
+    public int frontDirtyRows(){
+        return frontDirtyRows;
+    }
+}
@@ -0,0 +1,49 @@
+package naren.ragu.chip8emujavafx;
+
+import java.util.Locale;
+
+/**
+ * The machine a rom was written for. Decides the memory size, the display buffers and which
+ * instructions the interpreter decodes, so it is chosen before a rom is loaded and never changes while
+ * it runs. Quirks are set separately.
+ *
+ * CHIP8: 4 KB, 64x32.
+ * SCHIP: SUPER-CHIP 1.1, 4 KB, 64x32 or 128x64 (00FE/00FF), 16x16 sprites, scrolling, the big font
+ * (FX30) and 8 persistent flag registers (FX75/FX85).
+ * XOCHIP: SUPER-CHIP plus 64 KB of memory, two bit-planes (FN01), F000 NNNN, 5XY2/5XY3, scrolling up
+ * (00DN) and pattern audio (F002, FX3A).
+ */
+public enum Variant {
+
+    CHIP8(4096, Chip8.LORES_ROWS, 0),
+    SCHIP(4096, Chip8.PLANE_WORDS, 0),
+    XOCHIP(65536, Chip8.PLANE_WORDS, Chip8.PLANE_WORDS);
+
+    final int memorySize;
+    final int displayWords;  // words in the first plane
+    final int display2Words; // words in the second plane, 0 without one
+
+    Variant(int memorySize, int displayWords, int display2Words){
+        this.memorySize = memorySize;
+        this.displayWords = displayWords;
+        this.display2Words = display2Words;
+    }
+
+    // "chip8", "schip" or "xochip"
+    public static Variant of(String name){
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    // Guessed from the file extension the community uses: .sc8 for SUPER-CHIP, .xo8 for XO-CHIP
+    public static Variant forRom(String fileName){
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if(name.endsWith(".sc8")) return SCHIP;
+        if(name.endsWith(".xo8")) return XOCHIP;
+        return CHIP8;
+    }
+
+    @Override
+    public String toString(){
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
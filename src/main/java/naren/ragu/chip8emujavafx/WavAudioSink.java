@@ -0,0 +1,91 @@
+package naren.ragu.chip8emujavafx;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes samples to an 8 bit mono PCM .wav file, so beeper output can be checked without a sound card.
+ * The header sizes are filled in by close().
+ */
+public class WavAudioSink implements AudioSink {
+
+    static final int HEADER_SIZE = 44;
+
+    private final FileChannel channel;
+    private final float sampleRate;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private long dataSize;
+
+    public WavAudioSink(Path path, float sampleRate) throws IOException {
+        this.sampleRate = sampleRate;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        channel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public float getSampleRate(){
+        return sampleRate;
+    }
+
+    public long getSamples(){
+        return dataSize;
+    }
+
+    @Override
+    public void write(byte[] samples, int offset, int length){
+        for(int i = offset; i < offset + length; i++){
+            if(!buffer.hasRemaining()){
+                flush();
+            }
+            buffer.put((byte) (samples[i] ^ 0x80)); // 8 bit wav samples are unsigned
+        }
+        dataSize += length;
+    }
+
+    @Override
+    public void close(){
+        flush();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int rate = Math.round(sampleRate);
+        header.putInt(0x46464952); // "RIFF"
+        header.putInt((int) (HEADER_SIZE - 8 + dataSize));
+        header.putInt(0x45564157); // "WAVE"
+        header.putInt(0x20746d66); // "fmt "
+        header.putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) 1); // mono
+        header.putInt(rate);
+        header.putInt(rate); // bytes per second
+        header.putShort((short) 1); // bytes per sample
+        header.putShort((short) 8);
+        header.putInt(0x61746164); // "data"
+        header.putInt((int) dataSize);
+        header.flip();
+        try (channel) {
+            while(header.hasRemaining()){
+                // the header goes at the start of the file, where position() is in the buffer
+                channel.write(header, header.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush(){
+        buffer.flip();
+        try {
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+}